@@ -0,0 +1,475 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the .trak save on its own thread, so nothing waits for the disk. A save is written to a temporary file, forced to the disk, and then renamed over the old one,
+ * so a crash in the middle of saving leaves the old save as it was instead of a broken one.
+ * While a stack is being refined, each frame is also checkpointed to a .trak.part file as soon as it is done, so if Trak is killed before the whole stack is saved,
+ * the next run can pick up the frames that were already refined.
+ * @author Henry Rachootin
+ *
+ */
+public class AutoSave
+{
+	/**
+	 * The start of every checkpoint file, "TRAKPART" and a version.
+	 */
+	private static final long PART_MAGIC=0x5452414B50415254L;
+	private static final int PART_VERSION=1;
+	private static final int HEADER_SIZE=12;
+
+	private final File save;
+	private final File temp;
+	private final File part;
+
+	private final LinkedBlockingQueue<Runnable> queue=new LinkedBlockingQueue<Runnable>();
+	private final Thread writer;
+
+	/**
+	 * The checkpoint file, while it is open. Only used on the writer thread.
+	 */
+	private FileChannel checkpoint;
+	/**
+	 * Where the last whole frame in the checkpoint file ends. Anything after it is a frame that was being written when Trak stopped.
+	 */
+	private long checkpointEnd=0;
+
+	private DotTable loadedDots;
+
+	/**
+	 * The newest save that the writer has not started yet, so when saves are asked for faster than they can be written, i.e. as frames are recorded live,
+	 * only the newest is written. Guarded by this.
+	 */
+	private DotTracker[] nextTrackers;
+	private DotTable nextDots;
+
+	/**
+	 * Makes the save for a tiff, and starts its writer thread.
+	 * @param filePath the path of the tiff
+	 */
+	public AutoSave(String filePath)
+	{
+		save=new File(filePath+".trak");
+		temp=new File(filePath+".trak.tmp");
+		part=new File(filePath+".trak.part");
+		writer=new Thread("save")
+		{
+			public void run()
+			{
+				while(true)
+				{
+					try
+					{
+						queue.take().run();
+					}
+					catch(InterruptedException e)
+					{
+						return;
+					}
+				}
+			}
+		};
+		//the writer waits for work forever, so it cannot keep Trak from exiting, but the window closing calls System.exit,
+		//which does not wait for any thread, so whatever is still queued is written before Trak exits
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("finish saving")
+		{
+			public void run()
+			{
+				try
+				{
+					waitForWrites();
+				}
+				catch(InterruptedException e)
+				{
+				}
+			}
+		});
+	}
+
+	/**
+	 * Reads the save, keeping only the frames that are still good.
+	 * Each frame is read on its own, and spilled to the store straight away if there is one, so a save bigger than the heap can be read.
+	 * @param trackers where to put the frames that are still good, indexed by frame
+	 * @param hashes the hash of each frame's raw data, from DotTracker.hashPixels
+	 * @param store where to spill the refined data, or null to keep it on the heap
+	 * @return how many frames were still good
+	 */
+	public int load(DotTracker[] trackers, long[] hashes, PlaneStore store)
+	{
+		loadedDots=null;
+		if(!save.exists())
+		{
+			return 0;
+		}
+		PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.LOAD, -1);
+		int reused=0;
+		try
+		{
+			ObjectInputStream fromSave=new ObjectInputStream(new GZIPInputStream(new FileInputStream(save), 1<<16));
+			try
+			{
+				int frames=fromSave.readInt();
+				for(int i=0;i<frames;i++)
+				{
+					DotTracker tracker=(DotTracker) fromSave.readObject();
+					if(i<trackers.length && tracker.isRefinedFrom(hashes[i]))
+					{
+						keep(trackers, i, tracker, store);
+						reused++;
+					}
+				}
+				loadedDots=(DotTable) fromSave.readObject();
+			}
+			finally
+			{
+				fromSave.close();
+			}
+		}
+		catch(Exception e)
+		{
+			//a save from an older version, or a broken one. Whatever frames were read before it broke are still good.
+		}
+		span.end();
+		return reused;
+	}
+
+	/**
+	 *
+	 * @return the dots that were in the save, if load read them
+	 */
+	public DotTable getLoadedDots()
+	{
+		return loadedDots;
+	}
+
+	/**
+	 * Reads the frames checkpointed by an earlier run, filling in the frames the save did not have. It should be called before any frames are checkpointed,
+	 * since new frames are written after the ones it finds.
+	 * @param trackers the frames found so far, indexed by frame. Checkpointed frames are put in the empty places.
+	 * @param hashes the hash of each frame's raw data, from DotTracker.hashPixels
+	 * @param store where to spill the refined data, or null to keep it on the heap
+	 * @return how many frames were filled in
+	 */
+	public int resume(DotTracker[] trackers, long[] hashes, PlaneStore store)
+	{
+		if(!part.exists())
+		{
+			return 0;
+		}
+		int frames=trackers.length;
+		boolean[] resumed=new boolean[frames];
+		int found=0;
+		try
+		{
+			DataInputStream in=new DataInputStream(new FileInputStream(part));
+			try
+			{
+				if(in.readLong()!=PART_MAGIC || in.readInt()!=PART_VERSION)
+				{
+					return 0;
+				}
+				long end=HEADER_SIZE;
+				CRC32 crc=new CRC32();
+				while(true)
+				{
+					int frame=in.readInt();
+					int length=in.readInt();
+					long checksum=in.readLong();
+					if(length<0 || length>part.length()-end)
+					{
+						break;
+					}
+					byte[] bytes=new byte[length];
+					in.readFully(bytes);
+					crc.reset();
+					crc.update(bytes);
+					if(crc.getValue()!=checksum)
+					{
+						break;
+					}
+					//a frame checkpointed twice is only kept the second time
+					if(frame>=0 && frame<frames && (trackers[frame]==null || resumed[frame]))
+					{
+						DotTracker tracker=readTracker(bytes);
+						if(tracker.isRefinedFrom(hashes[frame]))
+						{
+							if(!resumed[frame])
+							{
+								found++;
+							}
+							keep(trackers, frame, tracker, store);
+							resumed[frame]=true;
+						}
+					}
+					end+=16+length;
+					checkpointEnd=end;
+				}
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch(EOFException e)
+		{
+			//the last frame was cut off, the ones before it are still good
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+		}
+		System.out.println(found+" frames checkpointed by an earlier run");
+		return found;
+	}
+
+	private static void keep(DotTracker[] trackers, int frame, DotTracker tracker, PlaneStore store)
+	{
+		if(store!=null)
+		{
+			tracker.spill(store, frame);
+		}
+		trackers[frame]=tracker;
+	}
+
+	/**
+	 * Checkpoints one frame in the background. The tracker must not change after this is called.
+	 * @param frame which frame it is
+	 * @param tracker the frame's tracker, already refined
+	 */
+	public void checkpoint(final int frame, final DotTracker tracker)
+	{
+		queue.add(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					writeCheckpoint(frame, tracker);
+				}
+				catch(IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Saves all the trackers and their dots in the background, replacing the old save only once the new one is completely on the disk.
+	 * The checkpoint file is deleted afterwards, since everything in it is in the save. If an older save is still waiting to be written, this one is written instead.
+	 * @param trackers the trackers
+	 * @param dots the dots on them
+	 */
+	public void save(DotTracker[] trackers, DotTable dots)
+	{
+		synchronized(this)
+		{
+			boolean waiting=nextTrackers!=null;
+			nextTrackers=trackers;
+			nextDots=dots;
+			if(waiting)
+			{
+				return;
+			}
+		}
+		queue.add(new Runnable()
+		{
+			public void run()
+			{
+				DotTracker[] trackers;
+				DotTable dots;
+				synchronized(AutoSave.this)
+				{
+					trackers=nextTrackers;
+					dots=nextDots;
+					nextTrackers=null;
+					nextDots=null;
+				}
+				PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.SAVE, -1);
+				try
+				{
+					writeSave(trackers, dots);
+				}
+				catch(IOException e)
+				{
+					e.printStackTrace();
+				}
+				span.end();
+			}
+		});
+	}
+
+	/**
+	 * Waits for everything given to the writer so far to be written.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void waitForWrites() throws InterruptedException
+	{
+		final Object done=new Object();
+		final boolean[] finished={false};
+		queue.add(new Runnable()
+		{
+			public void run()
+			{
+				synchronized(done)
+				{
+					finished[0]=true;
+					done.notifyAll();
+				}
+			}
+		});
+		synchronized(done)
+		{
+			while(!finished[0])
+			{
+				done.wait();
+			}
+		}
+	}
+
+	private void writeCheckpoint(int frame, DotTracker tracker) throws IOException
+	{
+		if(checkpoint==null)
+		{
+			checkpoint=FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			checkpoint.truncate(checkpointEnd); //anything after the last whole frame was cut off
+			if(checkpointEnd==0)
+			{
+				ByteBuffer header=ByteBuffer.allocate(HEADER_SIZE);
+				header.putLong(PART_MAGIC).putInt(PART_VERSION).flip();
+				writeFully(checkpoint, header, 0);
+				checkpointEnd=HEADER_SIZE;
+			}
+		}
+		byte[] bytes=writeTracker(tracker);
+		CRC32 crc=new CRC32();
+		crc.update(bytes);
+		ByteBuffer record=ByteBuffer.allocate(16+bytes.length);
+		record.putInt(frame).putInt(bytes.length).putLong(crc.getValue()).put(bytes).flip();
+		writeFully(checkpoint, record, checkpointEnd);
+		checkpoint.force(false);
+		checkpointEnd+=record.capacity();
+	}
+
+	private void writeSave(DotTracker[] trackers, DotTable dots) throws IOException
+	{
+		FileOutputStream file=new FileOutputStream(temp);
+		try
+		{
+			ObjectOutputStream toSave=new ObjectOutputStream(new GZIPOutputStream(file, 1<<16));
+			//written one at a time, forgetting each after it is written, so that spilled refined data is only on the heap one frame at a time
+			toSave.writeInt(trackers.length);
+			for(DotTracker tracker:trackers)
+			{
+				toSave.writeObject(tracker);
+				toSave.reset();
+			}
+			toSave.writeObject(dots);
+			toSave.close();
+		}
+		finally
+		{
+			file.close();
+		}
+		//the save has to be on the disk before it replaces the old one, or a crash could leave neither
+		FileChannel channel=FileChannel.open(temp.toPath(), StandardOpenOption.WRITE);
+		try
+		{
+			channel.force(true);
+		}
+		finally
+		{
+			channel.close();
+		}
+		try
+		{
+			Files.move(temp.toPath(), save.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch(IOException e)
+		{
+			//some file systems cannot rename atomically
+			Files.move(temp.toPath(), save.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		//the rename is only on the disk once the directory is
+		forceDirectory(save.getAbsoluteFile().getParentFile());
+
+		if(checkpoint!=null)
+		{
+			checkpoint.close();
+			checkpoint=null;
+		}
+		checkpointEnd=0;
+		Files.deleteIfExists(part.toPath());
+	}
+
+	/**
+	 * Forces a directory's entries to the disk, where the platform can open a directory. Where it cannot, i.e. on Windows, a rename is already as safe as it can be made.
+	 */
+	private static void forceDirectory(File directory)
+	{
+		try
+		{
+			FileChannel channel=FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+			try
+			{
+				channel.force(true);
+			}
+			finally
+			{
+				channel.close();
+			}
+		}
+		catch(IOException e)
+		{
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			position+=channel.write(buffer, position);
+		}
+	}
+
+	private static byte[] writeTracker(DotTracker tracker) throws IOException
+	{
+		ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+		ObjectOutputStream out=new ObjectOutputStream(new GZIPOutputStream(bytes));
+		out.writeObject(tracker);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static DotTracker readTracker(byte[] bytes) throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream in=new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(bytes)));
+		try
+		{
+			return (DotTracker) in.readObject();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,386 @@
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Times each stage of tracking on a made up stack, so that changes to speed can be measured instead of guessed at.
+ * Run it with arguments like width=256 height=256 frames=20 density=4 range=10 iterations=5 warmup=2.
+ * density is the number of spots per 100x100 pixels, and range is the LOCAL_SEARCH_RANGE to refine with.
+ * With report=file.json, the PipelineStats from the whole run are written there too.
+ * refineAll is timed both with and without RefineKernels; the rest of the run uses whichever -Dtrak.kernels picks.
+ * The stack comes from a StackGenerator. It needs nothing but the JDK, and runs headless.
+ * @author Henry Rachootin
+ *
+ */
+public class Benchmark
+{
+	private static int width=256;
+	private static int height=256;
+	private static int frames=20;
+	private static double density=4;
+	private static int iterations=5;
+	private static int warmup=2;
+	private static long seed=1;
+	private static String report=null;
+
+	private static int[][][] stack;
+	private static DotTracker[] trackers;
+
+	/**
+	 * A piece of work to time. run is called once per iteration, and setup, which is not timed, right before it.
+	 */
+	private static abstract class Case
+	{
+		final String name;
+		Case(String name)
+		{
+			this.name=name;
+		}
+		void setup() throws Exception
+		{}
+		abstract void run() throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		System.setProperty("java.awt.headless", "true");
+		for(String arg:args)
+		{
+			String[] pair=arg.split("=",2);
+			String key=pair[0];
+			String value=pair.length>1?pair[1]:"";
+			if(key.equals("width")) width=Integer.parseInt(value);
+			else if(key.equals("height")) height=Integer.parseInt(value);
+			else if(key.equals("frames")) frames=Integer.parseInt(value);
+			else if(key.equals("density")) density=Double.parseDouble(value);
+			else if(key.equals("range")) DotTracker.LOCAL_SEARCH_RANGE=Integer.parseInt(value);
+			else if(key.equals("iterations")) iterations=Integer.parseInt(value);
+			else if(key.equals("warmup")) warmup=Integer.parseInt(value);
+			else if(key.equals("seed")) seed=Long.parseLong(value);
+			else if(key.equals("report")) report=value;
+			else throw new IllegalArgumentException("Unknown argument "+arg);
+		}
+		System.out.println("stack "+width+"x"+height+"x"+frames+", "+density+" spots per 100x100, LOCAL_SEARCH_RANGE "+DotTracker.LOCAL_SEARCH_RANGE);
+
+		stack=makeStack();
+		trackers=new DotTracker[frames];
+		for(int i=0;i<frames;i++)
+		{
+			trackers[i]=new DotTracker(copy(stack[i]));
+			trackers[i].assignDots();
+		}
+		for(int i=0;i<frames-1;i++)
+		{
+			trackers[i].assignAllBecomes(trackers[i+1]);
+		}
+		int dotCount=0;
+		for(DotTracker tracker:trackers)
+		{
+			dotCount+=tracker.dots.size();
+		}
+		System.out.println(dotCount+" dots found");
+		System.out.println();
+		System.out.printf("%-20s %12s %12s %12s%n", "benchmark", "mean ms/op", "min ms/op", "ops");
+
+		final boolean kernels=RefineKernels.enabled;
+		for(final boolean columns:new boolean[]{false, true})
+		{
+			time(new Case(columns?"refineAll columns":"refineAll scalar")
+			{
+				int[][] data;
+				void setup()
+				{
+					RefineKernels.enabled=columns;
+					data=copy(stack[0]);
+				}
+				void run()
+				{
+					new DotTracker(data);
+				}
+			});
+		}
+		RefineKernels.enabled=kernels;
+		time(new Case("getDots")
+		{
+			void run()
+			{
+				for(DotTracker tracker:trackers)
+				{
+					tracker.getDots(DotTracker.DOT_PEAK_INTENSITY_CUTOFF);
+				}
+			}
+		});
+		time(new Case("assignAllBecomes")
+		{
+			ArrayList<ArrayList<Dot>> fresh=new ArrayList<ArrayList<Dot>>();
+			void setup()
+			{
+				fresh.clear();
+				for(DotTracker tracker:trackers)
+				{
+					fresh.add(tracker.copyDots());
+				}
+			}
+			void run()
+			{
+				for(int i=0;i<frames-1;i++)
+				{
+					DotTracker.link(fresh.get(i), fresh.get(i+1), DotTracker.DOT_DISTANCE_CUTOFF);
+				}
+			}
+		});
+		time(new Case("closestDot x1000")
+		{
+			Random r=new Random(seed);
+			void run()
+			{
+				for(int i=0;i<1000;i++)
+				{
+					trackers[i%frames].closestDot(r.nextDouble()*width, r.nextDouble()*height);
+				}
+			}
+		});
+		time(new Case("sweep 19x12")
+		{
+			double[] intensities=new double[19];
+			double[] distances=new double[12];
+			void setup()
+			{
+				for(int i=0;i<intensities.length;i++)
+				{
+					intensities[i]=(i+1)/20.0;
+				}
+				for(int i=0;i<distances.length;i++)
+				{
+					distances[i]=DotTracker.DOT_DISTANCE_CUTOFF*(i+1)/4;
+				}
+			}
+			void run()
+			{
+				new ParameterSweep(trackers, intensities, distances).run();
+			}
+		});
+		final DotIndex index=new DotIndex(trackers);
+		time(new Case("index queries x1000")
+		{
+			Random r=new Random(seed);
+			ArrayList<Dot> found=new ArrayList<Dot>();
+			void run()
+			{
+				for(int i=0;i<1000;i++)
+				{
+					double x=r.nextDouble()*width;
+					double y=r.nextDouble()*height;
+					int frame=r.nextInt(frames);
+					found.clear();
+					index.dotsIn(x, y, x+32, y+32, frame, frame+5, found);
+					index.tracksThrough(x, y, x+32, y+32, frame, frame+5);
+					index.nearest(x, y, frame, 5, DotTracker.DOT_DISTANCE_CUTOFF);
+				}
+			}
+		});
+		time(new Case("colorRefined")
+		{
+			BufferedImage image=new BufferedImage(width,height,BufferedImage.TYPE_INT_RGB);
+			void run()
+			{
+				Graphics g=image.getGraphics();
+				for(DotTracker tracker:trackers)
+				{
+					tracker.colorRefined(g);
+				}
+				g.dispose();
+			}
+		});
+		final double[][][] planes=new double[frames][width][height];
+		final CompressedPlane[] compressed=new CompressedPlane[frames];
+		for(int f=0;f<frames;f++)
+		{
+			for(int x=0;x<width;x++)
+			{
+				for(int y=0;y<height;y++)
+				{
+					planes[f][x][y]=trackers[f].getIntensity(x, y);
+				}
+			}
+			compressed[f]=new CompressedPlane(planes[f]);
+		}
+		long compressedBytes=0;
+		for(CompressedPlane plane:compressed)
+		{
+			compressedBytes+=plane.getBytes();
+		}
+		System.out.printf("compressed planes are %.1f%% of their size%n", 100.0*compressedBytes/(8.0*frames*width*height));
+		time(new Case("compress")
+		{
+			void run()
+			{
+				for(int f=0;f<frames;f++)
+				{
+					new CompressedPlane(planes[f]);
+				}
+			}
+		});
+		time(new Case("decode")
+		{
+			double[][] scratch=new double[width][height];
+			void run()
+			{
+				for(int f=0;f<frames;f++)
+				{
+					compressed[f].decode(scratch);
+				}
+			}
+		});
+		final byte[][] saved=new byte[1][];
+		time(new Case("save")
+		{
+			void run() throws IOException
+			{
+				ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+				ObjectOutputStream toSave=new ObjectOutputStream(new GZIPOutputStream(bytes));
+				toSave.writeObject(trackers);
+				toSave.close();
+				saved[0]=bytes.toByteArray();
+			}
+		});
+		time(new Case("load")
+		{
+			void run() throws Exception
+			{
+				ObjectInputStream fromSave=new ObjectInputStream(new GZIPInputStream(new ByteArrayInputStream(saved[0])));
+				fromSave.readObject();
+				fromSave.close();
+			}
+		});
+		System.out.println(saved[0].length/1024+" KiB saved");
+		final File exported=File.createTempFile("trak", ".export");
+		final File exportedLinks=File.createTempFile("trak", ".export");
+		exported.deleteOnExit();
+		exportedLinks.deleteOnExit();
+		time(new Case("export csv")
+		{
+			void run() throws IOException
+			{
+				new TrackExport(trackers).writeCSV(exported.getPath(), exportedLinks.getPath());
+			}
+		});
+		time(new Case("export columns")
+		{
+			void run() throws IOException
+			{
+				new TrackExport(trackers).writeColumns(exported.getPath());
+			}
+		});
+		time(new Case("analysis")
+		{
+			void run() throws InterruptedException
+			{
+				new TrackAnalysis(trackers, DotTracker.DOT_DISTANCE_CUTOFF, DotTracker.GAP_FRAMES).analyze(Runtime.getRuntime().availableProcessors());
+			}
+		});
+
+		BufferedImage[] images=new BufferedImage[frames];
+		for(int i=0;i<frames;i++)
+		{
+			images[i]=new BufferedImage(width,height,BufferedImage.TYPE_USHORT_GRAY);
+		}
+		Main.trackers=trackers;
+		Main.im=new ImageFrame(images);
+		for(int i=0;i<frames;i++)
+		{
+			Main.im.refinedImages[i]=new BufferedImage(width,height,BufferedImage.TYPE_INT_RGB);
+			trackers[i].colorRefined(Main.im.refinedImages[i].getGraphics());
+		}
+		Main.im.setSize(width*Main.im.startScale, height*Main.im.startScale);
+		Main.im.showDots=true;
+		final BufferedImage screen=new BufferedImage(Main.im.getWidth(),Main.im.getHeight(),BufferedImage.TYPE_INT_RGB);
+		final String[] modes={"all","shown","between","none"};
+		for(int mode=0;mode<modes.length;mode++)
+		{
+			final int paths=mode;
+			time(new Case("paint "+modes[mode])
+			{
+				int frame=0;
+				void setup()
+				{
+					Main.im.paths=paths;
+					Main.im.frame=frame;
+					frame=(frame+1)%frames; //a new frame every time, so the overlay is rebuilt
+				}
+				void run()
+				{
+					Graphics g=screen.getGraphics();
+					Main.im.paint(g);
+					g.dispose();
+				}
+			});
+		}
+		if(report!=null)
+		{
+			PipelineStats.get().writeReport(report);
+		}
+	}
+
+	/**
+	 * Runs a case the warmup number of times, then the iterations number of times, and prints how long the latter took.
+	 */
+	private static void time(Case c) throws Exception
+	{
+		for(int i=0;i<warmup;i++)
+		{
+			c.setup();
+			c.run();
+		}
+		long total=0;
+		long min=Long.MAX_VALUE;
+		for(int i=0;i<iterations;i++)
+		{
+			c.setup();
+			long before=System.nanoTime();
+			c.run();
+			long took=System.nanoTime()-before;
+			total+=took;
+			min=Math.min(min, took);
+		}
+		System.out.printf("%-20s %12.3f %12.3f %12d%n", c.name, total/1e6/iterations, min/1e6, iterations);
+	}
+
+	/**
+	 * Makes a stack of gaussian spots that wander between frames, on a noisy background.
+	 * @return the stack, indexed [frame][x][y]
+	 */
+	private static int[][][] makeStack()
+	{
+		StackGenerator gen=new StackGenerator();
+		gen.width=width;
+		gen.height=height;
+		gen.spots=(int)Math.round(density*width*height/10000d);
+		gen.seed=seed;
+		int[][][] stack=new int[frames][][];
+		for(int f=0;f<frames;f++)
+		{
+			stack[f]=gen.next();
+		}
+		return stack;
+	}
+
+	private static int[][] copy(int[][] data)
+	{
+		int[][] copy=new int[data.length][];
+		for(int x=0;x<data.length;x++)
+		{
+			copy[x]=data[x].clone();
+		}
+		return copy;
+	}
+}
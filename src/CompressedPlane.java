@@ -0,0 +1,195 @@
+import java.util.Arrays;
+
+/**
+ * A refined plane kept in memory as the runs of values down each column that are not the background, since most of a refined frame is one value:
+ * 0 where the refining clamps it, or NaN where the background is so flat that the entropy divides 0 by 0. The background is whichever value is most of the plane, bit for bit.
+ * Nothing is rounded: every other value is kept to the last bit, NaNs and -0 included, so a plane decodes to exactly what was compressed,
+ * and the dots found on it are the same. Decoding fills a plane that is already there, i.e. a scratch plane that is reused, with the background and copies the runs into it.
+ * @author Henry Rachootin
+ *
+ */
+public final class CompressedPlane
+{
+	private final int width;
+	private final int height;
+	/**
+	 * The bits of the background value.
+	 */
+	private final long background;
+	/**
+	 * The runs of column x are runs columnRuns[x] through columnRuns[x+1]-1.
+	 */
+	private final int[] columnRuns;
+	/**
+	 * Where each run starts in its column.
+	 */
+	private final int[] runStart;
+	/**
+	 * Where each run's values start in values, with one more at the end, so run r has runValues[r+1]-runValues[r] values.
+	 */
+	private final int[] runValues;
+	private final double[] values;
+
+	/**
+	 * Compresses a plane.
+	 * @param plane the refined data, indexed [x][y]
+	 */
+	public CompressedPlane(double[][] plane)
+	{
+		width=plane.length;
+		height=width>0?plane[0].length:0;
+		background=findBackground(plane);
+		int runs=0;
+		int kept=0;
+		for(double[] column:plane)
+		{
+			boolean inRun=false;
+			for(double value:column)
+			{
+				boolean inside=!isBackground(value);
+				if(inside)
+				{
+					kept++;
+					if(!inRun)
+					{
+						runs++;
+					}
+				}
+				inRun=inside;
+			}
+		}
+		columnRuns=new int[width+1];
+		runStart=new int[runs];
+		runValues=new int[runs+1];
+		values=new double[kept];
+		int run=0;
+		int at=0;
+		for(int x=0;x<width;x++)
+		{
+			columnRuns[x]=run;
+			double[] column=plane[x];
+			int y=0;
+			while(y<height)
+			{
+				if(isBackground(column[y]))
+				{
+					y++;
+					continue;
+				}
+				int end=y;
+				while(end<height && !isBackground(column[end]))
+				{
+					end++;
+				}
+				runStart[run]=y;
+				runValues[run]=at;
+				System.arraycopy(column, y, values, at, end-y);
+				at+=end-y;
+				run++;
+				y=end;
+			}
+		}
+		columnRuns[width]=run;
+		runValues[runs]=at;
+	}
+
+	/**
+	 * Finds the value that is more than half the plane, if there is one, by a majority vote over the bits of every value.
+	 * If none is, the vote picks some value, and the plane just does not compress as well.
+	 * @return the bits of the background
+	 */
+	private static long findBackground(double[][] plane)
+	{
+		long candidate=0L;
+		int votes=0;
+		for(double[] column:plane)
+		{
+			for(double value:column)
+			{
+				long bits=Double.doubleToRawLongBits(value);
+				if(votes==0)
+				{
+					candidate=bits;
+					votes=1;
+				}
+				else if(bits==candidate)
+				{
+					votes++;
+				}
+				else
+				{
+					votes--;
+				}
+			}
+		}
+		return candidate;
+	}
+
+	/**
+	 * Compares bits, so -0 is not +0 and each NaN is only itself.
+	 */
+	private boolean isBackground(double value)
+	{
+		return Double.doubleToRawLongBits(value)==background;
+	}
+
+	/**
+	 * Decodes the whole plane.
+	 * @param plane where to put it, at least as big as the plane. Anything past the plane's edges is left alone.
+	 * @return plane
+	 */
+	public double[][] decode(double[][] plane)
+	{
+		double fill=Double.longBitsToDouble(background);
+		for(int x=0;x<width;x++)
+		{
+			double[] column=plane[x];
+			Arrays.fill(column, 0, height, fill);
+			for(int r=columnRuns[x];r<columnRuns[x+1];r++)
+			{
+				System.arraycopy(values, runValues[r], column, runStart[r], runValues[r+1]-runValues[r]);
+			}
+		}
+		return plane;
+	}
+
+	/**
+	 *
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @return the value at x,y, found by a binary search of the runs in column x
+	 */
+	public double get(int x, int y)
+	{
+		int low=columnRuns[x];
+		int high=columnRuns[x+1]-1;
+		//the last run that starts at or before y
+		while(low<=high)
+		{
+			int mid=(low+high)>>>1;
+			if(runStart[mid]<=y)
+			{
+				low=mid+1;
+			}
+			else
+			{
+				high=mid-1;
+			}
+		}
+		int r=high;
+		if(r<columnRuns[x] || y-runStart[r]>=runValues[r+1]-runValues[r])
+		{
+			return Double.longBitsToDouble(background);
+		}
+		return values[runValues[r]+y-runStart[r]];
+	}
+
+	/**
+	 *
+	 * @return about how many bytes the compressed plane takes up
+	 */
+	public long getBytes()
+	{
+		return 4L*(columnRuns.length+runStart.length+runValues.length)+8L*values.length;
+	}
+}
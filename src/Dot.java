@@ -1,6 +1,5 @@
-import java.awt.Color;
-import java.awt.Graphics;
 import java.awt.Point;
+import java.awt.geom.Rectangle2D;
 import java.util.ArrayList;
 
 /**
@@ -16,6 +15,11 @@ public class Dot
 	private ArrayList<Dot> children=new ArrayList<Dot>();
 	private ArrayList<Dot> parents=new ArrayList<Dot>();
 	private ArrayList<Dot> siblings=new ArrayList<Dot>();
+	/**
+	 * Dots this dot becomes more than one frame later, after it was missed for a few frames, and dots that became this dot that way. Made by GapCloser.
+	 */
+	private ArrayList<Dot> gapChildren=new ArrayList<Dot>();
+	private ArrayList<Dot> gapParents=new ArrayList<Dot>();
 	
 	private boolean paintedDown;
 	private boolean paintedUp;
@@ -72,99 +76,100 @@ public class Dot
 	{
 		parents.add(d);
 	}
+	/**
+	 * Adds dot d to the dots this dot becomes after a gap of missed frames. Side effect: adds this dot to d's gap parents.
+	 * @param d the dot to add, on a later frame than the next one
+	 */
+	public void addGapChild(Dot d)
+	{
+		gapChildren.add(d);
+		d.gapParents.add(this);
+	}
 	
 	/**
-	 * Paints a green line from this dot to each of its children.
-	 * @param g the Graphics to paint to
+	 * Adds a line from this dot to each of its children and siblings to the buffer.
+	 * @param b the buffer to add to
 	 */
-	public void paintOneDown(Graphics g)
+	public void paintOneDown(OverlayBuffer b)
 	{
-		g.setColor(new Color(0,255,0,100));
 		for(Dot d:children)
 		{
-			g.drawLine(Main.im.toScreenX(pos.x), Main.im.toScreenY(pos.y), Main.im.toScreenX(d.pos.x), Main.im.toScreenY(d.pos.y));
+			b.addLine(pos.x, pos.y, d.pos.x, d.pos.y);
 		}
 		for(Dot d:siblings)
 		{
-			g.drawLine(Main.im.toScreenX(pos.x), Main.im.toScreenY(pos.y), Main.im.toScreenX(d.pos.x), Main.im.toScreenY(d.pos.y));
+			b.addLine(pos.x, pos.y, d.pos.x, d.pos.y);
 		}
 	}
 	/**
-	 * Paints a red circle at this dot and a red line to each of its siblings.
-	 * @param g the Graphics to paint to
+	 * Adds a circle at this dot and a line to each of its siblings to the buffer.
+	 * @param b the buffer to add to
 	 */
-	public void paintSelf(Graphics g,Color c)
+	public void paintSelf(OverlayBuffer b)
 	{
-		g.setColor(c);
-		g.fillOval(Main.im.toScreenX(pos.x)-(int)Main.im.scaleX()/2-1, Main.im.toScreenY(pos.y)-(int)Main.im.scaleY()/2-1, (int)Main.im.scaleX()+1, (int)Main.im.scaleY()+1);
+		b.addPoint(pos.x, pos.y);
 		for(Dot d:siblings)
 		{
-			g.drawLine(Main.im.toScreenX(pos.x), Main.im.toScreenY(pos.y), Main.im.toScreenX(d.pos.x), Main.im.toScreenY(d.pos.y));
+			b.addLine(pos.x, pos.y, d.pos.x, d.pos.y);
 		}
 	}
 	
-	
-	public void paintSelf(Graphics g)
-	{
-		paintSelf(g,new Color(255,0,0,100));
-	}
-	
 	/**
-	 * Paints this dot's history in blue and posterity in green in total.
-	 * @param g the Graphics to paint to
-	 * @param paintSelf this method will also paint the dot itself in red if true.
+	 * Adds this dot's posterity to the down buffer, its history to the up buffer, and, if paintSelf, a circle to the self buffer.
+	 * @param down the buffer for where it goes
+	 * @param up the buffer for where it came from
+	 * @param self the buffer for the dot itself
+	 * @param paintSelf this method will also add the dot itself if true.
 	 */
-	public void paint(Graphics g,boolean paintSelf)
+	public void paint(OverlayBuffer down, OverlayBuffer up, OverlayBuffer self, boolean paintSelf)
 	{
-		paintDown(g,new Color(0,255,0,100));
-		paintUp(g,new Color(0,0,255,100));
+		paintDown(down);
+		paintUp(up);
 		if(paintSelf)
 		{
-			paintSelf(g,new Color(255,0,0,100));
+			paintSelf(self);
 		}
 	}
 	/**
 	 * This is where the dot recursively paints its ancestors. Only goes backwards in time. Should refrain from redundant drawing and StackOverflowExceptions.
-	 * @param g
+	 * @param b
 	 */
-	private void paintUp(Graphics g,Color c)
+	private void paintUp(OverlayBuffer b)
 	{
 		paintingUp=true;
-		g.setColor(c);
 		for(Dot d:parents)
 		{
-			g.drawLine(Main.im.toScreenX(pos.x), Main.im.toScreenY(pos.y), Main.im.toScreenX(d.pos.x), Main.im.toScreenY(d.pos.y));
+			b.addLine(pos.x, pos.y, d.pos.x, d.pos.y);
 			if(!d.paintedUp)
-				d.paintUp(g,c);
+				d.paintUp(b);
 		}
 		for(Dot d:siblings)
 		{
-			g.drawLine(Main.im.toScreenX(pos.x), Main.im.toScreenY(pos.y), Main.im.toScreenX(d.pos.x), Main.im.toScreenY(d.pos.y));
+			b.addLine(pos.x, pos.y, d.pos.x, d.pos.y);
 			if(!d.paintingUp && !d.paintedUp)
-				d.paintUp(g,c);
+				d.paintUp(b);
 		}
 		paintedUp=true; //Gotta keep track to prevent redundancy. Other solution require massive amounts of graph theory.
 		paintingUp=false;
 	}
 	/**
 	 * This is where the dot recursively paints its posterity. Only goes forwards in time. Should refrain from redundant drawing and StackOverflowExceptions.
-	 * @param g
+	 * @param b
 	 */
-	private void paintDown(Graphics g,Color c)
+	private void paintDown(OverlayBuffer b)
 	{
 		paintingDown=true;
-		g.setColor(c);
 		for(Dot d:children)
 		{
-			g.drawLine(Main.im.toScreenX(pos.x), Main.im.toScreenY(pos.y), Main.im.toScreenX(d.pos.x), Main.im.toScreenY(d.pos.y));
+			b.addLine(pos.x, pos.y, d.pos.x, d.pos.y);
 			if(!d.paintedDown)
-				d.paintDown(g,c);
+				d.paintDown(b);
 		}
 		for(Dot d:siblings)
 		{
-			g.drawLine(Main.im.toScreenX(pos.x), Main.im.toScreenY(pos.y), Main.im.toScreenX(d.pos.x), Main.im.toScreenY(d.pos.y));
+			b.addLine(pos.x, pos.y, d.pos.x, d.pos.y);
 			if(!d.paintingDown && !d.paintedDown)
-				d.paintDown(g,c);
+				d.paintDown(b);
 		}
 		paintedDown=true; //Gotta keep track.
 		paintingDown=false;
@@ -182,19 +187,39 @@ public class Dot
 	}
 	
 	/**
-	 * Paints this dot, where it goes, where it came from, and, if paintSelf, a circle where it is.
-	 * @param g the graphics to paint to.
-	 * @param paintSelf whether or not to paint a circle at the current location
-	 * @param c the color to paint in.
+	 * 
+	 * @return the x coordinate of this dot on the tif
 	 */
-	public void paint(Graphics g, boolean paintSelf, Color c)
+	public int getX()
 	{
-		paintDown(g,c);
-		paintUp(g,c);
-		if(paintSelf)
+		return pos.x;
+	}
+	/**
+	 * 
+	 * @return the y coordinate of this dot on the tif
+	 */
+	public int getY()
+	{
+		return pos.y;
+	}
+	
+	/**
+	 * Grows a rectangle to cover this dot and the lines to its siblings, i.e. everything paintSelf draws.
+	 * @param bounds the rectangle to grow, or null if there is none yet
+	 * @return the grown rectangle
+	 */
+	public Rectangle2D addBounds(Rectangle2D bounds)
+	{
+		if(bounds==null)
+		{
+			bounds=new Rectangle2D.Double(pos.x, pos.y, 0, 0);
+		}
+		bounds.add(pos.x, pos.y);
+		for(Dot d:siblings)
 		{
-			paintSelf(g,c);
+			bounds.add(d.pos.x, d.pos.y);
 		}
+		return bounds;
 	}
 	
 	/**
@@ -205,4 +230,57 @@ public class Dot
 	{
 		return children;
 	}
+	/**
+	 * 
+	 * @return all the dots in the last frame that become this dot.
+	 */
+	public ArrayList<Dot> getParents()
+	{
+		return parents;
+	}
+	/**
+	 * 
+	 * @return all the dots this dot becomes after it was missed for a few frames.
+	 */
+	public ArrayList<Dot> getGapChildren()
+	{
+		return gapChildren;
+	}
+	/**
+	 * 
+	 * @return all the dots on earlier frames that become this dot after they were missed for a few frames.
+	 */
+	public ArrayList<Dot> getGapParents()
+	{
+		return gapParents;
+	}
+	/**
+	 * 
+	 * @return the dot this dot carries on the track of, or null if it starts a track. A dot is on its parent's track if it has only that parent,
+	 * which has no other children, or if it has no parents but one gap parent, which has no children and no other gap children.
+	 */
+	public Dot getTrackParent()
+	{
+		if(parents.size()==1 && parents.get(0).children.size()==1)
+		{
+			return parents.get(0);
+		}
+		if(parents.isEmpty() && gapParents.size()==1)
+		{
+			Dot from=gapParents.get(0);
+			if(from.children.isEmpty() && from.gapChildren.size()==1)
+			{
+				return from;
+			}
+		}
+		return null;
+	}
+	/**
+	 * 
+	 * @return all the dots in this frame close enough to be the same dot.
+	 */
+	public ArrayList<Dot> getSiblings()
+	{
+		return siblings;
+	}
 }
@@ -0,0 +1,169 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A spatial index of the dots on one frame. The frame is cut into square cells, and the dots are sorted by the cell they are in,
+ * so that finding the dots in a rectangle only looks at the cells the rectangle covers instead of every dot on the frame.
+ * @author Henry Rachootin
+ *
+ */
+public class DotGrid
+{
+	/**
+	 * The width and height of a cell, in tif pixels.
+	 */
+	public static final int CELL_SIZE=16;
+
+	private final int cols;
+	private final int rows;
+
+	/**
+	 * The dots, sorted by cell.
+	 */
+	private final Dot[] dots;
+	/**
+	 * The dots in cell c are dots[cellStart[c]] through dots[cellStart[c+1]-1].
+	 */
+	private final int[] cellStart;
+
+	/**
+	 * Indexes a list of dots.
+	 * @param list the dots on the frame
+	 * @param width the width of the frame
+	 * @param height the height of the frame
+	 */
+	public DotGrid(List<Dot> list, int width, int height)
+	{
+		cols=Math.max(1, (width+CELL_SIZE-1)/CELL_SIZE);
+		rows=Math.max(1, (height+CELL_SIZE-1)/CELL_SIZE);
+		cellStart=new int[cols*rows+1];
+		dots=new Dot[list.size()];
+
+		int[] cellOf=new int[list.size()];
+		for(int i=0;i<list.size();i++)
+		{
+			Dot d=list.get(i);
+			cellOf[i]=cell(col(d.getX()),row(d.getY()));
+			cellStart[cellOf[i]+1]++;
+		}
+		for(int c=0;c<cols*rows;c++)
+		{
+			cellStart[c+1]+=cellStart[c];
+		}
+		int[] next=new int[cols*rows];
+		System.arraycopy(cellStart, 0, next, 0, next.length);
+		for(int i=0;i<list.size();i++)
+		{
+			dots[next[cellOf[i]]++]=list.get(i);
+		}
+	}
+
+	/**
+	 * Adds every dot inside the rectangle, edges included, to out.
+	 * @param minX the left of the rectangle, in tif coordinates
+	 * @param minY the top of the rectangle
+	 * @param maxX the right of the rectangle
+	 * @param maxY the bottom of the rectangle
+	 * @param out the list to add the dots to
+	 */
+	public void query(double minX, double minY, double maxX, double maxY, ArrayList<Dot> out)
+	{
+		if(maxX<minX || maxY<minY)
+		{
+			return;
+		}
+		int c0=col(minX);
+		int c1=col(maxX);
+		int r0=row(minY);
+		int r1=row(maxY);
+		for(int r=r0;r<=r1;r++)
+		{
+			for(int c=c0;c<=c1;c++)
+			{
+				int cell=cell(c,r);
+				boolean inside=c>c0 && c<c1 && r>r0 && r<r1; //the whole cell is in the rectangle, no need to check each dot
+				for(int i=cellStart[cell];i<cellStart[cell+1];i++)
+				{
+					Dot d=dots[i];
+					if(inside || (d.getX()>=minX && d.getX()<=maxX && d.getY()>=minY && d.getY()<=maxY))
+					{
+						out.add(d);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Finds the dot closest to a point, looking at cells in rings around the point's cell until no closer dot can be in the next ring.
+	 * @param x the x coordinate, in tif coordinates
+	 * @param y the y coordinate
+	 * @param maxDistance how far away a dot can be and still be found
+	 * @return the closest dot no more than maxDistance away, or null if there is none
+	 */
+	public Dot nearest(double x, double y, double maxDistance)
+	{
+		Dot closest=null;
+		double best=maxDistance*maxDistance;
+		int cx=col(x);
+		int cy=row(y);
+		int rings=Math.max(Math.max(cx, cols-1-cx), Math.max(cy, rows-1-cy));
+		for(int r=0;r<=rings;r++)
+		{
+			for(int row=cy-r;row<=cy+r;row++)
+			{
+				if(row<0 || row>=rows)
+				{
+					continue;
+				}
+				//the top and bottom of the ring are whole rows, the sides are only the ends
+				int step=(row==cy-r || row==cy+r)?1:2*r;
+				for(int col=cx-r;col<=cx+r;col+=Math.max(1, step))
+				{
+					if(col<0 || col>=cols)
+					{
+						continue;
+					}
+					int cell=cell(col,row);
+					for(int i=cellStart[cell];i<cellStart[cell+1];i++)
+					{
+						double dx=dots[i].getX()-x;
+						double dy=dots[i].getY()-y;
+						double dist=dx*dx+dy*dy;
+						if(dist<best || (closest==null && dist==best))
+						{
+							best=dist;
+							closest=dots[i];
+						}
+					}
+				}
+			}
+			//every dot not looked at yet is at least this far away, since it is outside the block of cells looked at
+			double outside=Math.min(Math.min(x-(cx-r)*CELL_SIZE, (cx+r+1)*CELL_SIZE-x), Math.min(y-(cy-r)*CELL_SIZE, (cy+r+1)*CELL_SIZE-y));
+			if(outside>0 && outside*outside>=best)
+			{
+				break;
+			}
+		}
+		return closest;
+	}
+
+	private int col(double x)
+	{
+		return clamp((int)Math.floor(x/CELL_SIZE),cols);
+	}
+	private int row(double y)
+	{
+		return clamp((int)Math.floor(y/CELL_SIZE),rows);
+	}
+	private int cell(int col, int row)
+	{
+		return row*cols+col;
+	}
+	private static int clamp(int val, int count)
+	{
+		if(val<0) return 0;
+		if(val>=count) return count-1;
+		return val;
+	}
+}
@@ -0,0 +1,272 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+/**
+ * An index over the dots on every frame, for asking where things are in space and time at once: which dots are in a rectangle over a range of frames,
+ * which tracks pass through a rectangle, and which dots are nearest a point on a frame. It is built once, from the dots the trackers have when it is made,
+ * and does not see dots that are remade afterwards. Main.getIndex keeps one that is up to date.
+ * <p>
+ * Space is indexed by each frame's DotGrid, so a query only looks at the cells it covers, on the frames it covers. Every dot is given a track,
+ * following Dot.getTrackParent, and each track keeps its dots in order, so a track found in a rectangle can be followed from start to end without walking the links.
+ * @author Henry Rachootin
+ *
+ */
+public class DotIndex
+{
+	private final ArrayList<ArrayList<Dot>> frames;
+	private final DotGrid[] grids;
+	private final IdentityHashMap<DotTracker,Integer> frameOf;
+	private final IdentityHashMap<Dot,Integer> trackOf;
+	private final ArrayList<ArrayList<Dot>> tracks=new ArrayList<ArrayList<Dot>>();
+	/**
+	 * The frame each track starts on.
+	 */
+	private int[] trackStart=new int[16];
+
+	/**
+	 * The smallest box, in tif coordinates, around every dot.
+	 */
+	private double minX=Double.POSITIVE_INFINITY;
+	private double minY=Double.POSITIVE_INFINITY;
+	private double maxX=Double.NEGATIVE_INFINITY;
+	private double maxY=Double.NEGATIVE_INFINITY;
+
+	/**
+	 * Indexes the dots the trackers have now. Should be made on the event dispatch thread, or while nothing is remaking the dots.
+	 * @param trackers the trackers
+	 */
+	public DotIndex(DotTracker[] trackers)
+	{
+		int dots=0;
+		frames=new ArrayList<ArrayList<Dot>>(trackers.length);
+		grids=new DotGrid[trackers.length];
+		frameOf=new IdentityHashMap<DotTracker,Integer>(trackers.length*2);
+		for(int f=0;f<trackers.length;f++)
+		{
+			ArrayList<Dot> frame=trackers[f].dots;
+			frames.add(frame);
+			grids[f]=trackers[f].getGrid()!=null?trackers[f].getGrid():trackers[f].makeGrid(frame);
+			frameOf.put(trackers[f], f);
+			dots+=frame.size();
+		}
+		trackOf=new IdentityHashMap<Dot,Integer>(dots*2);
+		for(int f=0;f<frames.size();f++)
+		{
+			for(Dot d:frames.get(f))
+			{
+				Dot from=d.getTrackParent();
+				Integer track=from!=null?trackOf.get(from):null;
+				if(track==null)
+				{
+					track=tracks.size();
+					tracks.add(new ArrayList<Dot>());
+					if(track==trackStart.length)
+					{
+						trackStart=Arrays.copyOf(trackStart, track*2);
+					}
+					trackStart[track]=f;
+				}
+				tracks.get(track).add(d);
+				trackOf.put(d, track);
+				minX=Math.min(minX, d.getX());
+				minY=Math.min(minY, d.getY());
+				maxX=Math.max(maxX, d.getX());
+				maxY=Math.max(maxY, d.getY());
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param trackers the trackers
+	 * @return whether this index was made from the same frames as the trackers have now
+	 */
+	public boolean isOf(DotTracker[] trackers)
+	{
+		if(trackers.length!=frames.size())
+		{
+			return false;
+		}
+		for(int f=0;f<trackers.length;f++)
+		{
+			if(trackers[f].dots!=frames.get(f))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Adds every dot inside a rectangle, edges included, on a range of frames, to out, frame by frame.
+	 * @param minX the left of the rectangle, in tif coordinates
+	 * @param minY the top of the rectangle
+	 * @param maxX the right of the rectangle
+	 * @param maxY the bottom of the rectangle
+	 * @param from the first frame
+	 * @param to the last frame, included
+	 * @param out the list to add the dots to
+	 */
+	public void dotsIn(double minX, double minY, double maxX, double maxY, int from, int to, ArrayList<Dot> out)
+	{
+		for(int f=Math.max(0, from);f<=to && f<grids.length;f++)
+		{
+			grids[f].query(minX, minY, maxX, maxY, out);
+		}
+	}
+
+	/**
+	 * Finds the tracks with a dot inside a rectangle on a range of frames.
+	 * @param minX the left of the rectangle, in tif coordinates
+	 * @param minY the top of the rectangle
+	 * @param maxX the right of the rectangle
+	 * @param maxY the bottom of the rectangle
+	 * @param from the first frame
+	 * @param to the last frame, included
+	 * @return the tracks, in order, each once
+	 */
+	public int[] tracksThrough(double minX, double minY, double maxX, double maxY, int from, int to)
+	{
+		ArrayList<Dot> inside=new ArrayList<Dot>();
+		dotsIn(minX, minY, maxX, maxY, from, to, inside);
+		int[] found=new int[inside.size()];
+		for(int i=0;i<found.length;i++)
+		{
+			found[i]=trackOf.get(inside.get(i));
+		}
+		Arrays.sort(found);
+		int count=0;
+		for(int i=0;i<found.length;i++)
+		{
+			if(i==0 || found[i]!=found[i-1])
+			{
+				found[count++]=found[i];
+			}
+		}
+		return Arrays.copyOf(found, count);
+	}
+
+	/**
+	 * Finds the k dots nearest to a point on a frame, where dots on other frames are further away the more frames away they are.
+	 * The distance is sqrt(dx^2+dy^2+(pixelsPerFrame*dt)^2), so a pixelsPerFrame of infinity only looks at the one frame, and one of 0 treats every frame as the same.
+	 * It looks in a box around the point, on the frames close enough to be in it, and doubles the box until it holds k dots.
+	 * @param x the x coordinate, in tif coordinates
+	 * @param y the y coordinate
+	 * @param frame the frame
+	 * @param k how many dots to find
+	 * @param pixelsPerFrame how many pixels apart one frame counts as
+	 * @return up to k dots, nearest first
+	 */
+	public ArrayList<Dot> nearest(final double x, final double y, final int frame, int k, final double pixelsPerFrame)
+	{
+		ArrayList<Dot> found=new ArrayList<Dot>();
+		if(k<=0)
+		{
+			return found;
+		}
+		//far enough to hold every dot on every frame
+		double everything=Math.max(Math.max(x-minX, maxX-x), Math.max(y-minY, maxY-y));
+		double radius=DotGrid.CELL_SIZE;
+		while(true)
+		{
+			found.clear();
+			//how many frames away a dot can be and still be in the ball
+			int reach=pixelsPerFrame!=0?(int)Math.min(grids.length, Math.floor(radius/Math.abs(pixelsPerFrame))):grids.length;
+			for(int f=Math.max(0, frame-reach);f<=frame+reach && f<grids.length;f++)
+			{
+				int before=found.size();
+				grids[f].query(x-radius, y-radius, x+radius, y+radius, found);
+				//only the ones inside the ball, since one outside it could be further than one not found yet
+				int kept=before;
+				for(int i=before;i<found.size();i++)
+				{
+					if(distance(found.get(i), x, y, frame, pixelsPerFrame)<=radius)
+					{
+						found.set(kept++, found.get(i));
+					}
+				}
+				found.subList(kept, found.size()).clear();
+			}
+			boolean wholeStack=radius>=everything && (reach>=grids.length || Double.isInfinite(pixelsPerFrame));
+			if(found.size()>=k || wholeStack)
+			{
+				break;
+			}
+			radius*=2;
+		}
+		Collections.sort(found, new Comparator<Dot>()
+		{
+			public int compare(Dot a, Dot b)
+			{
+				return Double.compare(distance(a, x, y, frame, pixelsPerFrame), distance(b, x, y, frame, pixelsPerFrame));
+			}
+		});
+		if(found.size()>k)
+		{
+			found.subList(k, found.size()).clear();
+		}
+		return found;
+	}
+
+	private double distance(Dot d, double x, double y, int frame, double pixelsPerFrame)
+	{
+		int frames=getFrame(d)-frame;
+		double dt=frames==0?0:pixelsPerFrame*frames; //so an infinite pixelsPerFrame is 0 on the same frame
+		double dx=d.getX()-x;
+		double dy=d.getY()-y;
+		return Math.sqrt(dx*dx+dy*dy+dt*dt);
+	}
+
+	/**
+	 *
+	 * @param d a dot in the index
+	 * @return the frame the dot is on
+	 */
+	public int getFrame(Dot d)
+	{
+		return frameOf.get(d.tracker);
+	}
+
+	/**
+	 *
+	 * @param d a dot in the index
+	 * @return the track the dot is on, or -1 if it is not in the index
+	 */
+	public int getTrack(Dot d)
+	{
+		Integer track=trackOf.get(d);
+		return track!=null?track:-1;
+	}
+
+	/**
+	 *
+	 * @param track a track
+	 * @return the dots on the track, in order. There can be frames missing, where the track crosses a gap.
+	 */
+	public ArrayList<Dot> getTrackDots(int track)
+	{
+		return tracks.get(track);
+	}
+
+	/**
+	 *
+	 * @param track a track
+	 * @return the frame the track starts on
+	 */
+	public int getTrackStart(int track)
+	{
+		return trackStart[track];
+	}
+
+	/**
+	 *
+	 * @return how many tracks there are
+	 */
+	public int getTrackCount()
+	{
+		return tracks.size();
+	}
+}
@@ -0,0 +1,204 @@
+import java.awt.Point;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * The dots on every frame and the connections between them, flattened into arrays of ints so they can be saved along with the trackers.
+ * It remembers the cutoffs, and GAP_FRAMES, that made it, so that loading it can take the place of finding and connecting all the dots again, but only when the cutoffs are the same.
+ * @author Henry Rachootin
+ *
+ */
+public class DotTable implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	private final double intensityCutoff;
+	private final double distanceCutoff;
+	/**
+	 * 0 in tables saved before gaps were closed, which is right, since they have none.
+	 */
+	private final int gapFrames;
+
+	/**
+	 * The positions of the dots on each frame, indexed [frame][dot]
+	 */
+	private final int[][] xs;
+	private final int[][] ys;
+	/**
+	 * The connections from each frame, as pairs of dot indices, indexed [frame][2*connection] for the dot on the frame and [frame][2*connection+1] for the other dot.
+	 * Children are on the next frame, siblings on the same one.
+	 */
+	private final int[][] children;
+	private final int[][] siblings;
+	/**
+	 * The connections across gaps from each frame, as triples indexed [frame][3*connection] for the dot on the frame,
+	 * [frame][3*connection+1] for how many frames later the other dot is, and [frame][3*connection+2] for the other dot. Null in tables saved before gaps were closed.
+	 */
+	private final int[][] gaps;
+
+	/**
+	 * Flattens the dots the trackers have now.
+	 * @param trackers the trackers
+	 * @param intensityCutoff the DOT_PEAK_INTENSITY_CUTOFF the dots were found with
+	 * @param distanceCutoff the DOT_DISTANCE_CUTOFF the dots were connected with
+	 * @param gapFrames the GAP_FRAMES the gaps were closed with
+	 */
+	public DotTable(DotTracker[] trackers, double intensityCutoff, double distanceCutoff, int gapFrames)
+	{
+		this.intensityCutoff=intensityCutoff;
+		this.distanceCutoff=distanceCutoff;
+		this.gapFrames=gapFrames;
+		int frames=trackers.length;
+		xs=new int[frames][];
+		ys=new int[frames][];
+		children=new int[frames][];
+		siblings=new int[frames][];
+		gaps=new int[frames][];
+
+		ArrayList<IdentityHashMap<Dot,Integer>> indices=new ArrayList<IdentityHashMap<Dot,Integer>>(frames);
+		for(int f=0;f<frames;f++)
+		{
+			ArrayList<Dot> dots=trackers[f].dots;
+			IdentityHashMap<Dot,Integer> index=new IdentityHashMap<Dot,Integer>(dots.size()*2);
+			xs[f]=new int[dots.size()];
+			ys[f]=new int[dots.size()];
+			for(int i=0;i<dots.size();i++)
+			{
+				Dot d=dots.get(i);
+				xs[f][i]=d.getX();
+				ys[f][i]=d.getY();
+				index.put(d, i);
+			}
+			indices.add(index);
+		}
+		for(int f=0;f<frames;f++)
+		{
+			ArrayList<Dot> dots=trackers[f].dots;
+			IntList childPairs=new IntList();
+			IntList siblingPairs=new IntList();
+			IntList gapTriples=new IntList();
+			for(int i=0;i<dots.size();i++)
+			{
+				for(Dot child:dots.get(i).getChildren())
+				{
+					Integer j=f+1<frames?indices.get(f+1).get(child):null;
+					if(j!=null)
+					{
+						childPairs.add(i);
+						childPairs.add(j);
+					}
+				}
+				for(Dot sibling:dots.get(i).getSiblings())
+				{
+					Integer j=indices.get(f).get(sibling);
+					if(j!=null)
+					{
+						siblingPairs.add(i);
+						siblingPairs.add(j);
+					}
+				}
+				for(Dot gapChild:dots.get(i).getGapChildren())
+				{
+					for(int later=2;later<=gapFrames+1 && f+later<frames;later++)
+					{
+						Integer j=indices.get(f+later).get(gapChild);
+						if(j!=null)
+						{
+							gapTriples.add(i);
+							gapTriples.add(later);
+							gapTriples.add(j);
+							break;
+						}
+					}
+				}
+			}
+			children[f]=childPairs.toArray();
+			siblings[f]=siblingPairs.toArray();
+			gaps[f]=gapTriples.toArray();
+		}
+	}
+
+	/**
+	 *
+	 * @param frames the number of frames in the stack
+	 * @param intensityCutoff the DOT_PEAK_INTENSITY_CUTOFF the dots should be found with
+	 * @param distanceCutoff the DOT_DISTANCE_CUTOFF the dots should be connected with
+	 * @param gapFrames the GAP_FRAMES the gaps should be closed with
+	 * @return whether this table holds exactly the dots that finding and connecting them again would make
+	 */
+	public boolean matches(int frames, double intensityCutoff, double distanceCutoff, int gapFrames)
+	{
+		return xs.length==frames && this.intensityCutoff==intensityCutoff && this.distanceCutoff==distanceCutoff && this.gapFrames==gapFrames;
+	}
+
+	/**
+	 * Makes the dots and connections in this table, and gives them to the trackers.
+	 * @param trackers the trackers, which must be the ones the table was made from
+	 */
+	public void apply(DotTracker[] trackers)
+	{
+		int frames=xs.length;
+		ArrayList<ArrayList<Dot>> dots=new ArrayList<ArrayList<Dot>>(frames);
+		for(int f=0;f<frames;f++)
+		{
+			ArrayList<Dot> frameDots=new ArrayList<Dot>(xs[f].length);
+			for(int i=0;i<xs[f].length;i++)
+			{
+				frameDots.add(new Dot(new Point(xs[f][i],ys[f][i]),trackers[f]));
+			}
+			dots.add(frameDots);
+		}
+		for(int f=0;f<frames;f++)
+		{
+			double reach=0;
+			ArrayList<Dot> frameDots=dots.get(f);
+			for(int c=0;c<children[f].length;c+=2)
+			{
+				Dot from=frameDots.get(children[f][c]);
+				Dot to=dots.get(f+1).get(children[f][c+1]);
+				from.addChild(to);
+				reach=Math.max(reach, from.distance(to));
+			}
+			for(int c=0;c<siblings[f].length;c+=2)
+			{
+				Dot from=frameDots.get(siblings[f][c]);
+				Dot to=frameDots.get(siblings[f][c+1]);
+				from.addSibling(to);
+				reach=Math.max(reach, from.distance(to));
+			}
+			for(int c=0;gaps!=null && c<gaps[f].length;c+=3)
+			{
+				frameDots.get(gaps[f][c]).addGapChild(dots.get(f+gaps[f][c+1]).get(gaps[f][c+2]));
+			}
+			trackers[f].setDots(frameDots, trackers[f].makeGrid(frameDots), reach);
+		}
+	}
+
+	/**
+	 * A growable list of ints, so the connections are not boxed while the table is made.
+	 */
+	private static class IntList
+	{
+		private int[] values=new int[16];
+		private int size=0;
+
+		void add(int value)
+		{
+			if(size==values.length)
+			{
+				int[] bigger=new int[values.length*2];
+				System.arraycopy(values, 0, bigger, 0, size);
+				values=bigger;
+			}
+			values[size++]=value;
+		}
+
+		int[] toArray()
+		{
+			int[] array=new int[size];
+			System.arraycopy(values, 0, array, 0, size);
+			return array;
+		}
+	}
+}
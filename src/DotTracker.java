@@ -1,6 +1,10 @@
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Point;
+import java.awt.geom.Rectangle2D;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 
@@ -13,16 +17,26 @@ import java.util.ArrayList;
  */
 public class DotTracker implements Serializable
 {
-	private static final long serialVersionUID = DotTracker.class.hashCode();
+	private static final long serialVersionUID = 1L; //saves are checked with pixelHash and refineFingerprint instead
+	/**
+	 * Change this whenever refining changes in a way that makes different refined data, so old saves are refined again.
+	 */
+	private static final int REFINE_VERSION=1;
 	
 	
 	public static double DOT_PEAK_INTENSITY_CUTOFF=.34; //These can change without hurting saves
 	public static double DOT_DISTANCE_CUTOFF=4;
+	public static int GAP_FRAMES=0; //how many frames in a row a dot can be missed and still be connected, by GapCloser. 0 leaves gaps open
 	
-	public static double REFINE_RANGE_CUTOFF=.25; //these are used in the refining process. Changes should change the serialVersion
+	public static double REFINE_RANGE_CUTOFF=.25; //these are used in the refining process. Changes are caught by refineFingerprint()
 	public static double REFINE_INTENSITY_CUTOFF=.2;
 	public static int LOCAL_SEARCH_RANGE=10;
 	
+	/**
+	 * Whether to keep refined data compressed, as a CompressedPlane, instead of as a whole plane, so more frames fit in memory. Colors are then only made for the frames being shown, as out of core. Set with -Dtrak.compressed=true
+	 */
+	public static volatile boolean COMPRESS_REFINED="true".equals(System.getProperty("trak.compressed"));
+	
 	private final int width;
 	private final int height;
 	
@@ -35,6 +49,37 @@ public class DotTracker implements Serializable
 	private double[][] ranges;
 	private double[][] entropy;
 	
+	/**
+	 * The hash of the raw data this was refined from, and the fingerprint of the parameters it was refined with, so a save can tell whether it is still good.
+	 */
+	private final long pixelHash;
+	private final long refinedWith;
+	
+	/**
+	 * Where the refined data is when it is not on the heap, in out of core mode. Then refined is null.
+	 */
+	private transient PlaneStore store;
+	private transient int storeFrame;
+	/**
+	 * The refined data when it is compressed. Then refined is null.
+	 */
+	private transient CompressedPlane compressed;
+	/**
+	 * A plane for each thread to decode compressed refined data into, so decoding does not make a new plane every time.
+	 */
+	private static final ThreadLocal<double[][]> scratch=new ThreadLocal<double[][]>();
+	
+	/**
+	 * One PeakFinder for each thread that finds dots, so their buffers are made once.
+	 */
+	private static final ThreadLocal<PeakFinder> finders=new ThreadLocal<PeakFinder>()
+	{
+		protected PeakFinder initialValue()
+		{
+			return new PeakFinder();
+		}
+	};
+	
 	/**
 	 * All the dots on this frame. NOT AUTOMATICALLY ASSIGNED, FOR PERFORMACE
 	 */
@@ -43,19 +88,39 @@ public class DotTracker implements Serializable
 	 * The list of highlighted dots, used for user interaction.
 	 */
 	transient ArrayList<Dot> highlighted;
+	/**
+	 * A spatial index of the dots, made whenever they are assigned.
+	 */
+	private transient DotGrid grid;
+	/**
+	 * The length of the longest connection from a dot on this frame, to its children or siblings.
+	 */
+	private transient double reach;
 	
 	/**
 	 * Creates a new DotTracker from the specified tiff
 	 * @param data: the raw data from the tiff
 	 */
 	public DotTracker(int [][] data)
+	{
+		this(data,-1);
+	}
+	
+	/**
+	 * Creates a new DotTracker from the specified tiff
+	 * @param data: the raw data from the tiff
+	 * @param frame: which frame of the tiff it is, for PipelineStats
+	 */
+	public DotTracker(int [][] data, int frame)
 	{
 		this.data=data;
 		width=data.length;
 		height=data[0].length;
+		pixelHash=hashPixels(data);
+		refinedWith=refineFingerprint();
 		refined=new double[width][height];
-		ranges=new double[width][height];
-		entropy=new double[width][height];
+		ranges=new double[0][0];
+		entropy=new double[0][0];
 		for(int x=0;x<width;x++)
 		{
 			for(int y=0;y<height;y++)
@@ -64,7 +129,75 @@ public class DotTracker implements Serializable
 				min=Math.min(data[x][y], min);			
 			}
 		}
-		refineAll();
+		refineAll(frame);
+		if(COMPRESS_REFINED)
+		{
+			compress();
+		}
+	}
+	
+	/**
+	 * 
+	 * @param data the raw data of a frame
+	 * @return whether this tracker was refined from exactly that data, with the refining parameters as they are now
+	 */
+	public boolean isRefinedFrom(int[][] data)
+	{
+		return isRefinedFrom(hashPixels(data));
+	}
+	
+	/**
+	 * 
+	 * @param pixelHash the hashPixels of the raw data of a frame
+	 * @return whether this tracker was refined from data with that hash, with the refining parameters as they are now
+	 */
+	public boolean isRefinedFrom(long pixelHash)
+	{
+		return refinedWith==refineFingerprint() && this.pixelHash==pixelHash;
+	}
+	
+	/**
+	 * A fast 64 bit hash of a frame's raw data, to tell whether a frame has changed since it was refined.
+	 * @param data the raw data
+	 * @return the hash
+	 */
+	public static long hashPixels(int[][] data)
+	{
+		long hash=mix(data.length);
+		for(int x=0;x<data.length;x++)
+		{
+			int[] column=data[x];
+			hash=mix(hash^column.length);
+			for(int y=0;y<column.length;y++)
+			{
+				hash=(hash^column[y])*0x9E3779B97F4A7C15L;
+				hash^=hash>>>29;
+			}
+		}
+		return mix(hash);
+	}
+	
+	/**
+	 * 
+	 * @return a fingerprint of everything that changes how data is refined
+	 */
+	public static long refineFingerprint()
+	{
+		long hash=mix(REFINE_VERSION);
+		hash=mix(hash^Double.doubleToLongBits(REFINE_RANGE_CUTOFF));
+		hash=mix(hash^Double.doubleToLongBits(REFINE_INTENSITY_CUTOFF));
+		hash=mix(hash^LOCAL_SEARCH_RANGE);
+		return hash;
+	}
+	
+	/**
+	 * Scrambles the bits of a long, so that every bit of the input affects every bit of the output.
+	 */
+	private static long mix(long z)
+	{
+		z=(z^(z>>>30))*0xBF58476D1CE4E5B9L;
+		z=(z^(z>>>27))*0x94D049BB133111EBL;
+		return z^(z>>>31);
 	}
 	
 	/**
@@ -188,9 +321,18 @@ public class DotTracker implements Serializable
 	
 	/**
 	 * refines all the data, assigning the refined[][] array.
+	 * @param frame which frame this is, for PipelineStats
 	 */
-	private void refineAll()
+	private void refineAll(int frame)
 	{
+		if(RefineKernels.enabled)
+		{
+			refineColumns(frame);
+			return;
+		}
+		ranges=new double[width][height];
+		entropy=new double[width][height];
+		PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.REFINE_RANGE, frame);
 		for(int x=0;x<width;x++)
 		{
 			for(int y=0;y<height;y++)
@@ -198,6 +340,8 @@ public class DotTracker implements Serializable
 				refined[x][y]=getRefined(x,y);
 			}
 		}
+		span.end();
+		span=PipelineStats.begin(PipelineStats.Stage.REFINE_ENTROPY, frame);
 		for(int x=0;x<width;x++)
 		{
 			for(int y=0;y<height;y++)
@@ -205,6 +349,8 @@ public class DotTracker implements Serializable
 				entropy[x][y]=getEntropy(x,y);
 			}
 		}
+		span.end();
+		span=PipelineStats.begin(PipelineStats.Stage.REFINE_CLAMP, frame);
 		for(int x=0;x<width;x++)
 		{
 			for(int y=0;y<height;y++)
@@ -213,11 +359,58 @@ public class DotTracker implements Serializable
 				refined[x][y]=clamp(refined[x][y],0,1);
 			}
 		}
+		span.end();
 		
 		data=new int[0][0];
 		entropy=new double[0][0];
 		ranges=new double[0][0];
 	}
+	
+	/**
+	 * refineAll in one sweep across the frame, a column at a time with RefineKernels. The refined data is exactly the same.
+	 * Entropy needs the columns on either side before they have their entropy taken away, so only those three columns are kept
+	 * before the entropy is taken away, in buffers that are reused as the sweep moves along. Nothing else as big as the frame is made, and ranges is not filled in, since nothing reads it.
+	 * @param frame which frame this is, for PipelineStats
+	 */
+	private void refineColumns(int frame)
+	{
+		PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.REFINE, frame);
+		int[] localMin=new int[height];
+		int[] localMax=new int[height];
+		double[] columnEntropy=new double[height];
+		double[] before=null;
+		double[] column=refineColumn(0, new double[height], localMin, localMax);
+		double[] after=width>1?refineColumn(1, new double[height], localMin, localMax):null;
+		double[] spare=new double[height];
+		for(int x=0;x<width;x++)
+		{
+			RefineKernels.entropy(before, column, after, columnEntropy);
+			RefineKernels.subtractClamp(column, columnEntropy, refined[x]);
+			//slide along, reusing the column that is no longer needed
+			double[] free=before!=null?before:spare;
+			before=column;
+			column=after;
+			after=x+2<width?refineColumn(x+2, free, localMin, localMax):null;
+		}
+		span.end();
+		
+		data=new int[0][0];
+	}
+	
+	/**
+	 * Works out getRefined for a whole column, before the entropy is taken away.
+	 * @param x which column
+	 * @param out where to put it
+	 * @param localMin room for the lowest data near each pixel
+	 * @param localMax room for the highest data near each pixel
+	 * @return out
+	 */
+	private double[] refineColumn(int x, double[] out, int[] localMin, int[] localMax)
+	{
+		RefineKernels.localRange(data, x, LOCAL_SEARCH_RANGE, localMin, localMax);
+		RefineKernels.refine(data[x], localMin, localMax, min, max, REFINE_RANGE_CUTOFF, REFINE_INTENSITY_CUTOFF, out);
+		return out;
+	}
 	/**
 	 * utility method to fit data to the range [0,1]
 	 * @param val the raw value
@@ -248,6 +441,7 @@ public class DotTracker implements Serializable
 	 */
 	public void colorRefined(Graphics graphics)
 	{
+		double[][] refined=getPlane();
 		for(int x=0;x<width;x++)
 		{
 			for(int y=0;y<height;y++)
@@ -265,23 +459,39 @@ public class DotTracker implements Serializable
 	 */
 	public void assignAllBecomes(DotTracker next)
 	{
+		reach=link(dots,next.dots,DOT_DISTANCE_CUTOFF);
+	}
+	
+	/**
+	 * Gives the dots of one frame their children in the next frame and their siblings in their own.
+	 * @param dots the dots on the frame
+	 * @param next the dots on the next frame
+	 * @param cutoff how far apart two dots can be and still be connected
+	 * @return the length of the longest connection made
+	 */
+	static double link(ArrayList<Dot> dots, ArrayList<Dot> next, double cutoff)
+	{
+		double reach=0;
 		for(Dot d1:dots)
 		{
-			for(Dot d2:next.dots)
+			for(Dot d2:next)
 			{
-				if(d1.distance(d2)<DOT_DISTANCE_CUTOFF)
+				if(d1.distance(d2)<cutoff)
 				{
 					d1.addChild(d2);
+					reach=Math.max(reach, d1.distance(d2));
 				}
 			}
 			for(Dot d2:dots)
 			{
-				if(d2!=d1 && d1.distance(d2)<DOT_DISTANCE_CUTOFF)
+				if(d2!=d1 && d1.distance(d2)<cutoff)
 				{
 					d1.addSibling(d2);
+					reach=Math.max(reach, d1.distance(d2));
 				}
 			}
 		}
+		return reach;
 	}
 	
 	/**
@@ -289,15 +499,241 @@ public class DotTracker implements Serializable
 	 */
 	public void assignDots()
 	{
-		dots=getDots();
+		ArrayList<Dot> found=getDots(DOT_PEAK_INTENSITY_CUTOFF);
+		setDots(found,makeGrid(found),0);
+	}
+	
+	/**
+	 * Replaces the dots on this tracker with ones made somewhere else, i.e. in the background. Should only be called on the event dispatch thread.
+	 * @param dots the new dots
+	 * @param grid the spatial index of the new dots
+	 * @param reach the length of the longest connection from the new dots
+	 */
+	void setDots(ArrayList<Dot> dots, DotGrid grid, double reach)
+	{
+		this.dots=dots;
+		this.grid=grid;
+		this.reach=reach;
 	}
 	
 	/**
-	 * Gets all the valid dots it can find on this tracker, using a peak method.
+	 * Connects the dots on this tracker to the dots on the next frame, when the next frame's dots were found after this tracker's, i.e. when frames are added to a live stack.
+	 * Should only be called on the event dispatch thread.
+	 * @param next the dots on the next frame
+	 * @param cutoff the DOT_DISTANCE_CUTOFF to connect them with
+	 */
+	void linkNext(ArrayList<Dot> next, double cutoff)
+	{
+		reach=Math.max(reach, link(dots,next,cutoff));
+	}
+	
+	/**
+	 * 
+	 * @param dots dots on this tracker
+	 * @return a spatial index of the dots
+	 */
+	DotGrid makeGrid(ArrayList<Dot> dots)
+	{
+		return new DotGrid(dots,width,height);
+	}
+	
+	/**
+	 * 
+	 * @return the spatial index of the dots on this tracker, or null if they have not been assigned
+	 */
+	DotGrid getGrid()
+	{
+		return grid;
+	}
+	
+	/**
+	 * 
+	 * @return new dots in the same places as the dots on this tracker, without any connections
+	 */
+	ArrayList<Dot> copyDots()
+	{
+		ArrayList<Dot> copy=new ArrayList<Dot>(dots.size());
+		for(Dot d:dots)
+		{
+			copy.add(new Dot(new Point(d.getX(),d.getY()),this));
+		}
+		return copy;
+	}
+	
+	/**
+	 * Adds all the dots inside a rectangle to a list, using the spatial index if the dots have been assigned.
+	 * @param minX the left of the rectangle, in tif coordinates
+	 * @param minY the top of the rectangle
+	 * @param maxX the right of the rectangle
+	 * @param maxY the bottom of the rectangle
+	 * @param out the list to add the dots to
+	 */
+	public void getDotsIn(double minX, double minY, double maxX, double maxY, ArrayList<Dot> out)
+	{
+		if(grid!=null)
+		{
+			grid.query(minX, minY, maxX, maxY, out);
+		}
+		else if(dots!=null)
+		{
+			for(Dot d:dots)
+			{
+				if(d.getX()>=minX && d.getX()<=maxX && d.getY()>=minY && d.getY()<=maxY)
+				{
+					out.add(d);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * 
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @return the refined value at x,y, between 0 and 1
+	 */
+	public double getIntensity(int x, int y)
+	{
+		if(refined!=null)
+		{
+			return refined[x][y];
+		}
+		if(compressed!=null)
+		{
+			return compressed.get(x, y);
+		}
+		return store.get(storeFrame, x, y);
+	}
+	
+	/**
+	 * 
+	 * @return the refined data, read back from the PlaneStore if it has been spilled there. It must not be changed.
+	 * If it is compressed, it is decoded into this thread's scratch plane, which is only good until getPlane is called again on the same thread.
+	 */
+	private double[][] getPlane()
+	{
+		if(refined!=null)
+		{
+			return refined;
+		}
+		if(compressed!=null)
+		{
+			double[][] plane=scratch.get();
+			if(plane==null || plane.length!=width || (width>0 && plane[0].length!=height))
+			{
+				plane=new double[width][height];
+				scratch.set(plane);
+			}
+			return compressed.decode(plane);
+		}
+		return store.read(storeFrame);
+	}
+	
+	/**
+	 * Compresses the refined data, unless it has been spilled or compressed already.
+	 */
+	public void compress()
+	{
+		if(refined==null)
+		{
+			return;
+		}
+		compressed=new CompressedPlane(refined);
+		refined=null;
+	}
+	
+	/**
+	 * Moves the refined data off the heap, into a PlaneStore. From then on, anything that needs the refined data reads it back from the store just for as long as it needs it.
+	 * @param store where to put the refined data
+	 * @param frame which frame this is
+	 */
+	public void spill(PlaneStore store, int frame)
+	{
+		if(refined==null && compressed==null)
+		{
+			return;
+		}
+		store.write(frame, getPlane());
+		this.store=store;
+		storeFrame=frame;
+		refined=null;
+		compressed=null;
+	}
+	
+	/**
+	 * Writes the refined data even when it has been spilled or compressed, without putting it back on the heap for longer than it takes to write.
+	 * It is decoded into a plane of its own, not the scratch plane, since a stream that writes more than one tracker would see the scratch plane as one object.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		ObjectOutputStream.PutField fields=out.putFields();
+		fields.put("width", width);
+		fields.put("height", height);
+		fields.put("min", min);
+		fields.put("max", max);
+		fields.put("data", data);
+		fields.put("refined", refined==null && compressed!=null?compressed.decode(new double[width][height]):getPlane());
+		fields.put("ranges", ranges);
+		fields.put("entropy", entropy);
+		fields.put("pixelHash", pixelHash);
+		fields.put("refinedWith", refinedWith);
+		out.writeFields();
+	}
+	
+	/**
+	 * Reads the refined data back as a whole plane, and compresses it again if refined data is being kept compressed.
+	 * The dots are not saved with the tracker, so it starts with none, the same as a new one, until a job or a DotTable gives it its dots.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		dots=new ArrayList<Dot>();
+		if(COMPRESS_REFINED)
+		{
+			compress();
+		}
+	}
+	
+	/**
+	 * 
+	 * @return the length of the longest connection from a dot on this frame. Any connection that crosses a rectangle starts at a dot within this distance of it.
+	 */
+	public double getReach()
+	{
+		return reach;
+	}
+	
+	/**
+	 * Finds the peaks on this tracker that are brighter than a cutoff, the same ones getDots would make dots of, without making the dots.
+	 * @param cutoff how bright a peak has to be
+	 * @return this thread's PeakFinder, which holds the peaks until it is used again
+	 */
+	PeakFinder findPeaks(double cutoff)
+	{
+		PeakFinder finder=finders.get();
+		finder.find(getPlane(), cutoff);
+		return finder;
+	}
+	
+	/**
+	 * Gets all the valid dots it can find on this tracker, using a peak method. With RefineKernels enabled the peaks are found by a PeakFinder, which finds exactly the same ones.
+	 * @param cutoff how bright a peak has to be to be a dot
 	 * @return a list of all the dots on this tracker
 	 */
-	private ArrayList<Dot> getDots()
+	ArrayList<Dot> getDots(double cutoff)
 	{
+		if(RefineKernels.enabled)
+		{
+			PeakFinder finder=findPeaks(cutoff);
+			int peaks=finder.size();
+			ArrayList<Dot> found=new ArrayList<Dot>(peaks);
+			for(int i=0;i<peaks;i++)
+			{
+				found.add(new Dot(new Point(finder.getX(i),finder.getY(i)),this));
+			}
+			return found;
+		}
+		double[][] refined=getPlane();
 		ArrayList<Dot> toReturn=new ArrayList<Dot>();
 		for(int x=0;x<width;x++)
 		{
@@ -321,7 +757,7 @@ public class DotTracker implements Serializable
 						}
 					}
 				}
-				if(refined[x][y]>DOT_PEAK_INTENSITY_CUTOFF && isPeak)
+				if(refined[x][y]>cutoff && isPeak)
 				{
 					toReturn.add(new Dot(new Point(x,y),this));
 				}
@@ -338,30 +774,65 @@ public class DotTracker implements Serializable
 	 */
 	public Dot closestDot(double x, double y)
 	{
+		return closestDot(x,y,Double.POSITIVE_INFINITY);
+	}
+	
+	/**
+	 * Gets the closest dot to a point, as long as it is close enough, using the spatial index if the dots have been assigned.
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @param maxDistance how far away the dot can be
+	 * @return the closest dot to the x,y coordinate, or null if there is none within maxDistance
+	 */
+	public Dot closestDot(double x, double y, double maxDistance)
+	{
+		if(grid!=null)
+		{
+			return grid.nearest(x, y, maxDistance);
+		}
 		Dot closest=null;
-		double dist=1000000;
-		for(Dot d:dots)
+		double dist=maxDistance;
+		if(dots!=null)
 		{
-			if(d.distance(x,y)<dist)
+			for(Dot d:dots)
 			{
-				dist=d.distance(x,y);
-				closest=d;
+				double distance=d.distance(x,y);
+				if(distance<dist || (closest==null && distance==dist))
+				{
+					dist=distance;
+					closest=d;
+				}
 			}
 		}
 		return closest;
 	}
 	/**
-	 * Paints the highlighted dot.
-	 * @param g the graphics to paint to
-	 * @param c the color to paint the dot
+	 * Grows a rectangle to cover everything paintHighlighted draws.
+	 * @param bounds the rectangle to grow, or null if there is none yet
+	 * @return the grown rectangle, or null if nothing is highlighted and there was none
+	 */
+	public Rectangle2D addHighlightBounds(Rectangle2D bounds)
+	{
+		if(highlighted!=null)
+		{
+			for(Dot d:highlighted)
+			{
+				bounds=d.addBounds(bounds);
+			}
+		}
+		return bounds;
+	}
+	/**
+	 * Paints the highlighted dots.
+	 * @param b the buffer to add the dots to
 	 */
-	public void paintHighlighted(Graphics g,Color c)
+	public void paintHighlighted(OverlayBuffer b)
 	{
 		if(highlighted!=null)
 		{
 			for(Dot d:highlighted)
 			{
-				d.paintSelf(g,c);
+				d.paintSelf(b);
 			}
 		}
 	}
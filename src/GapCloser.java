@@ -0,0 +1,129 @@
+import java.util.ArrayList;
+
+/**
+ * Connects the ends of tracks to the starts of tracks a few frames later, so a dot that is missed for a frame or two, i.e. when it blinks, does not break its lineage.
+ * A track ends at a dot with no children, and starts at a dot with no parents, unless one of its siblings has them, since then the object goes on through the sibling.
+ * <p>
+ * Each end looks for the closest start on the frame after next, then the one after that, and so on, up to GAP_FRAMES frames later.
+ * A dot can travel the DOT_DISTANCE_CUTOFF each frame, so a start g frames later can be up to g times as far away. The starts are found with each frame's DotGrid,
+ * so only the dots near an end are looked at, and the work grows with the number of ends instead of the number of dots.
+ * Each start is only given to one end, the first one to find it, going through the ends frame by frame.
+ * @author Henry Rachootin
+ *
+ */
+public class GapCloser
+{
+	private final ArrayList<ArrayList<Dot>> frames;
+	private final DotGrid[] grids;
+	private final int gapFrames;
+	private final double cutoff;
+
+	private final ArrayList<Dot> near=new ArrayList<Dot>();
+
+	/**
+	 * @param frames the dots on every frame, already connected to the next frame
+	 * @param grids the spatial index of each frame's dots
+	 * @param gapFrames how many frames in a row a dot can be missed
+	 * @param cutoff the DOT_DISTANCE_CUTOFF the frames were connected with
+	 */
+	public GapCloser(ArrayList<ArrayList<Dot>> frames, DotGrid[] grids, int gapFrames, double cutoff)
+	{
+		this.frames=frames;
+		this.grids=grids;
+		this.gapFrames=gapFrames;
+		this.cutoff=cutoff;
+	}
+
+	/**
+	 * Connects the ends on some of the frames to the starts after them.
+	 * @param from the first frame to look for ends on
+	 * @param to one after the last frame to look for ends on
+	 * @return how many gaps were closed
+	 */
+	public int close(int from, int to)
+	{
+		int closed=0;
+		for(int f=from;f<to;f++)
+		{
+			for(Dot end:frames.get(f))
+			{
+				if(isEnd(end))
+				{
+					Dot start=findStart(end, f);
+					if(start!=null)
+					{
+						end.addGapChild(start);
+						closed++;
+					}
+				}
+			}
+		}
+		return closed;
+	}
+
+	/**
+	 *
+	 * @return the closest start to the end, on the nearest frame that has one in reach, or null if there is none
+	 */
+	private Dot findStart(Dot end, int frame)
+	{
+		for(int gap=2;gap<=gapFrames+1 && frame+gap<frames.size();gap++)
+		{
+			if(grids[frame+gap]==null)
+			{
+				continue;
+			}
+			double reach=cutoff*gap;
+			near.clear();
+			grids[frame+gap].query(end.getX()-reach, end.getY()-reach, end.getX()+reach, end.getY()+reach, near);
+			Dot closest=null;
+			double best=reach;
+			for(Dot d:near)
+			{
+				double distance=end.distance(d);
+				if(distance<best && isStart(d))
+				{
+					best=distance;
+					closest=d;
+				}
+			}
+			if(closest!=null)
+			{
+				return closest;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isEnd(Dot d)
+	{
+		if(!d.getChildren().isEmpty() || !d.getGapChildren().isEmpty())
+		{
+			return false;
+		}
+		for(Dot sibling:d.getSiblings())
+		{
+			if(!sibling.getChildren().isEmpty() || !sibling.getGapChildren().isEmpty())
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean isStart(Dot d)
+	{
+		if(!d.getParents().isEmpty() || !d.getGapParents().isEmpty())
+		{
+			return false;
+		}
+		for(Dot sibling:d.getSiblings())
+		{
+			if(!sibling.getParents().isEmpty() || !sibling.getGapParents().isEmpty())
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
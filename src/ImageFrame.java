@@ -3,12 +3,25 @@ import java.awt.Color;
 import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Hashtable;
 
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
 /**
  * 
  * @author Henry Rachootin
@@ -35,76 +48,175 @@ public class ImageFrame extends Component
 	public volatile int rangeEnd=5;
 	
 	public volatile boolean showDots=false;
+	/**
+	 * Whether to draw the frame rate and paint times in the corner.
+	 */
+	public volatile boolean showHud=false;
 	
+	/**
+	 * The frames that have highlighted dots. Frames outside of this range are not looked at when painting highlights.
+	 */
+	public int highlightStart=0;
+	public int highlightEnd=-1;
+	/**
+	 * The dot under the mouse, if there is one.
+	 */
+	public Dot hovered;
+	
+	/**
+	 * The frame being shown. Only changed on the event dispatch thread.
+	 */
 	public int frame=0;
-	public final int frames;
-	private final int FPS=16;
+	/**
+	 * How many frames can be shown. In live mode, frames are added to the end as they are recorded, once they have their dots.
+	 */
+	public int frames;
+	private int fps=16;
 	
 	
 	public BufferedImage refinedImages[];
 	
 	public int[][][] datas;
 	
+	/**
+	 * Out of core, the raw data is not kept in datas, and only the last REFINED_WINDOW frames shown have a refined image, to keep the heap small.
+	 */
+	public final boolean outOfCore;
+	private static final int REFINED_WINDOW=8;
+	private final ArrayDeque<Integer> refinedShown=new ArrayDeque<Integer>();
+	private RenderedImage[] images;
+	
 	public int startScale=6;
 	
 	private final int imwidth;
 	private final int imheight;
-	private Thread animator;
+	/**
+	 * Advances the frame while playing. It fires on the event dispatch thread, so it can change the frame without synchronization.
+	 */
+	private final Timer animator;
 	public volatile boolean playing=false;
 	
+	/**
+	 * When the animator last advanced, and how much time since then has not been used up by whole frames.
+	 */
+	private long lastTick;
+	private long behind;
+	/**
+	 * Whether a repaint has been asked for that has not been painted yet. No more are asked for until it is painted, or until it has been waited on for PAINT_TIMEOUT.
+	 */
+	private boolean paintPending=false;
+	/**
+	 * When the pending repaint was asked for.
+	 */
+	private long paintRequested;
+	/**
+	 * How long a repaint can be pending, in nanoseconds, before it is taken to have been dropped, i.e. while the window is iconified, and another is asked for.
+	 */
+	private static final long PAINT_TIMEOUT=500000000L;
+	/**
+	 * How long the last paint took, in nanoseconds.
+	 */
+	private long lastPaintTime=0;
+	/**
+	 * How many frames were skipped during playback because painting could not keep up.
+	 */
+	private long droppedFrames=0;
+	private final PaintStats paintStats=new PaintStats();
+	
+	private static final Color DOWN_COLOR=new Color(0,255,0,100);
+	private static final Color UP_COLOR=new Color(0,0,255,100);
+	private static final Color SELF_COLOR=new Color(255,0,0,100);
+	
+	private final OverlayBuffer down=new OverlayBuffer();
+	private final OverlayBuffer up=new OverlayBuffer();
+	private final OverlayBuffer self=new OverlayBuffer();
+	private final OverlayBuffer past=new OverlayBuffer();
+	private final OverlayBuffer present=new OverlayBuffer();
+	private final OverlayBuffer future=new OverlayBuffer();
+	private final OverlayBuffer hover=new OverlayBuffer();
+	
+	private final AffineTransform view=new AffineTransform();
+	private final AffineTransform imageView=new AffineTransform();
+	
+	private static final double MAX_ZOOM=64;
+	/**
+	 * How many times bigger than fitting the whole frame the image is shown.
+	 */
+	private volatile double zoom=1;
+	/**
+	 * The tif coordinates of the top left corner of the screen.
+	 */
+	private volatile double panX=0;
+	private volatile double panY=0;
+	
+	/**
+	 * The part of the tif that is being painted, with some margin.
+	 */
+	private float visibleMinX;
+	private float visibleMinY;
+	private float visibleMaxX;
+	private float visibleMaxY;
+	private final ArrayList<Dot> visibleDots=new ArrayList<Dot>();
+	
+	/**
+	 * Everything the path overlay was last built from. If none of it changes, the buffers can be painted again as they are.
+	 */
+	private int builtFrame=-1;
+	private int builtPaths=-1;
+	private boolean builtShowDots;
+	private int builtRangeStart;
+	private int builtRangeEnd;
+	private int builtVersion=-1;
+	private float builtMinX;
+	private float builtMinY;
+	private float builtMaxX;
+	private float builtMaxY;
+	private volatile int overlayVersion=0;
+	
 	/**
 	 * Creates an image frame to hold a number of RenderedImages
 	 * @param images the images to hold
 	 */
 	public ImageFrame(RenderedImage[] images)
+	{
+		this(images,false);
+	}
+	
+	/**
+	 * Creates an image frame to hold a number of RenderedImages
+	 * @param images the images to hold
+	 * @param outOfCore true to convert the images only when their data is needed, instead of keeping all of it
+	 */
+	public ImageFrame(RenderedImage[] images, boolean outOfCore)
 	{
 		super();
+		this.images=images;
+		this.outOfCore=outOfCore;
 		setPreferredSize(new Dimension((int)(images[0].getWidth()*startScale),(int)(images[0].getHeight()*startScale)));
 		imwidth=images[0].getWidth();
 		imheight=images[0].getHeight();
 		
-		datas=new int[images.length][imwidth][imheight];
+		datas=outOfCore?new int[images.length][][]:new int[images.length][imwidth][imheight];
 		
 		refinedImages=new BufferedImage[images.length];
 		BufferedImage[] rawImages=new BufferedImage[images.length];
 		
 		frames=images.length;
 		
-		for(int i=0;i<images.length;i++)
+		for(int i=0;i<images.length && !outOfCore;i++)
 		{
+			PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.CONVERT, i);
 			rawImages[i]=convertRenderedImage(images[i],i);
+			span.end();
 		}
-		animator=new Thread(new Runnable()
+		animator=new Timer(1000/fps, new ActionListener()
 		{
-			long targetFrame=1000/FPS;
-			long sleepTime=0;
-			public void run() 
+			public void actionPerformed(ActionEvent e)
 			{
-				while(true)
-				{
-					if(playing)
-					{
-						frame=(frame+1)%frames;
-					}
-					try 
-					{
-						Thread.sleep(sleepTime);
-					} 
-					catch (InterruptedException e) 
-					{
-						e.printStackTrace();
-					}
-					long beforeTime=System.currentTimeMillis();
-					repaint();
-					sleepTime=targetFrame-(System.currentTimeMillis()-beforeTime);
-					if(sleepTime<0)
-					{
-						sleepTime=0;
-					}
-				}
+				advance();
 			}
-			
-		},"animator");
+		});
+		animator.setCoalesce(true);
 	}
 	/**
 	 * starts the animation
@@ -112,6 +224,9 @@ public class ImageFrame extends Component
 	public void start()
 	{
 		playing=true;
+		lastTick=System.nanoTime();
+		behind=0;
+		animator.start();
 	}
 	/**
 	 * stops the animation
@@ -119,6 +234,148 @@ public class ImageFrame extends Component
 	public void stop()
 	{
 		playing=false;
+		animator.stop();
+	}
+	
+	/**
+	 * Sets how fast the animation plays.
+	 * @param fps the frames per second to play at
+	 */
+	public void setFPS(int fps)
+	{
+		this.fps=Math.max(1, fps);
+		animator.setDelay(Math.max(1000/this.fps, (int)(lastPaintTime/1000000)));
+	}
+	/**
+	 * 
+	 * @return the frames per second the animation plays at
+	 */
+	public int getFPS()
+	{
+		return fps;
+	}
+	/**
+	 * 
+	 * @return how many frames have been skipped during playback because painting took longer than a frame
+	 */
+	public long getDroppedFrames()
+	{
+		return droppedFrames;
+	}
+	
+	/**
+	 * 
+	 * @return the measurements of how long painting takes
+	 */
+	public PaintStats getPaintStats()
+	{
+		return paintStats;
+	}
+	
+	/**
+	 * Shows a frame.
+	 * @param frame the frame to show
+	 */
+	public void setFrame(int frame)
+	{
+		if(frame!=this.frame)
+		{
+			this.frame=frame;
+			requestPaint();
+		}
+	}
+	
+	/**
+	 * Adds images to the end of the stack, converting them and making room for their refined images. They cannot be shown until setFrames is called,
+	 * since they have no trackers yet. Only called on the event dispatch thread.
+	 * @param more the new images, the same size as the others
+	 */
+	public void addImages(RenderedImage[] more)
+	{
+		int old=images.length;
+		int total=old+more.length;
+		RenderedImage[] grown=Arrays.copyOf(images, total);
+		System.arraycopy(more, 0, grown, old, more.length);
+		images=grown;
+		datas=Arrays.copyOf(datas, total);
+		refinedImages=Arrays.copyOf(refinedImages, total);
+		for(int i=old;i<total && !outOfCore;i++)
+		{
+			PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.CONVERT, i);
+			convertRenderedImage(images[i],i);
+			span.end();
+			refinedImages[i]=(BufferedImage) createImage(imwidth,imheight);
+			if(refinedImages[i]==null)
+			{
+				refinedImages[i]=new BufferedImage(imwidth,imheight,BufferedImage.TYPE_INT_RGB);
+			}
+		}
+	}
+	
+	/**
+	 * Lets more frames be shown, once they have their trackers. If the last frame was being shown, and the animation is not playing, the new last frame is shown instead,
+	 * so a live stack can be watched as it is recorded. Only called on the event dispatch thread.
+	 * @param frames how many frames can be shown now
+	 */
+	public void setFrames(int frames)
+	{
+		if(frames<=this.frames)
+		{
+			return;
+		}
+		boolean following=frame==this.frames-1 && !playing;
+		this.frames=frames;
+		if(following)
+		{
+			frame=frames-1;
+		}
+		invalidateOverlay();
+	}
+	
+	/**
+	 * Moves the animation forward by however many frames should have been shown since the last time. If painting is slower than the frame rate,
+	 * the frames it had no time for are skipped, so the animation still plays at the right speed.
+	 */
+	private void advance()
+	{
+		long now=System.nanoTime();
+		if(paintPending && now-paintRequested>PAINT_TIMEOUT)
+		{
+			//Swing never painted it, so nothing would ever be painted again
+			paintPending=false;
+		}
+		long period=1000000000L/fps;
+		behind+=now-lastTick;
+		lastTick=now;
+		int steps=(int)(behind/period);
+		if(steps==0)
+		{
+			return;
+		}
+		behind-=steps*period;
+		if(paintPending)
+		{
+			droppedFrames+=steps;
+		}
+		else
+		{
+			droppedFrames+=steps-1;
+		}
+		frame=(frame+steps)%frames;
+		requestPaint();
+	}
+	
+	/**
+	 * Asks for a repaint, unless one has already been asked for and not painted.
+	 */
+	private void requestPaint()
+	{
+		if(!paintPending)
+		{
+			paintPending=true;
+			paintRequested=System.nanoTime();
+			repaint();
+		}
 	}
 	
 	/**
@@ -127,7 +384,7 @@ public class ImageFrame extends Component
 	 */
 	public double scaleX()
 	{
-		return getWidth()/(double)imwidth;
+		return zoom*getWidth()/(double)imwidth;
 	}
 	/**
 	 * 
@@ -135,7 +392,7 @@ public class ImageFrame extends Component
 	 */
 	public double scaleY()
 	{
-		return getHeight()/(double)imheight;
+		return zoom*getHeight()/(double)imheight;
 	}
 	/**
 	 * 
@@ -143,7 +400,7 @@ public class ImageFrame extends Component
 	 */
 	public int toScreenX(int picX)
 	{
-		return (int) Math.round(picX*scaleX()+scaleX()/2d);
+		return (int) Math.round((picX-panX)*scaleX()+scaleX()/2d);
 	}
 	/**
 	 * 
@@ -151,24 +408,119 @@ public class ImageFrame extends Component
 	 */
 	public int toScreenY(int picY)
 	{
-		return (int) Math.round(picY*scaleY()+scaleY()/2d);
+		return (int) Math.round((picY-panY)*scaleY()+scaleY()/2d);
+	}
+	/**
+	 * 
+	 * @return the x-coordinate on the tif of the screenX x-coordinate on the screen
+	 */
+	public double toImageX(double screenX)
+	{
+		return screenX/scaleX()+panX;
+	}
+	/**
+	 * 
+	 * @return the y-coordinate on the tif of the screenY y-coordinate on the screen
+	 */
+	public double toImageY(double screenY)
+	{
+		return screenY/scaleY()+panY;
+	}
+	
+	/**
+	 * Zooms in or out, keeping the point under the cursor where it is.
+	 * @param factor how much to multiply the zoom by. Greater than one zooms in.
+	 * @param screenX the x-coordinate of the cursor
+	 * @param screenY the y-coordinate of the cursor
+	 */
+	public void zoomAt(double factor, int screenX, int screenY)
+	{
+		double picX=toImageX(screenX);
+		double picY=toImageY(screenY);
+		zoom=Math.max(1, Math.min(MAX_ZOOM, zoom*factor));
+		panX=picX-screenX/scaleX();
+		panY=picY-screenY/scaleY();
+		clampPan();
+		repaint();
+	}
+	/**
+	 * Moves the view.
+	 * @param dx how far to move the image right, in screen pixels
+	 * @param dy how far to move the image down, in screen pixels
+	 */
+	public void panBy(int dx, int dy)
+	{
+		panX-=dx/scaleX();
+		panY-=dy/scaleY();
+		clampPan();
+		repaint();
+	}
+	/**
+	 * Zooms all the way out, so the whole frame is shown.
+	 */
+	public void resetView()
+	{
+		zoom=1;
+		panX=0;
+		panY=0;
+		repaint();
+	}
+	private void clampPan()
+	{
+		panX=Math.max(0, Math.min(imwidth-imwidth/zoom, panX));
+		panY=Math.max(0, Math.min(imheight-imheight/zoom, panY));
+	}
+	
+	/**
+	 * 
+	 * @return the transform from tif coordinates to screen coordinates. Pixel centers land where toScreenX and toScreenY put them.
+	 */
+	public AffineTransform getViewTransform()
+	{
+		double scaleX=scaleX();
+		double scaleY=scaleY();
+		view.setTransform(scaleX, 0, 0, scaleY, scaleX/2d-panX*scaleX, scaleY/2d-panY*scaleY);
+		return view;
+	}
+	/**
+	 * Repaints only the part of the screen that a rectangle on the tif covers, with enough margin for the circles drawn at dots.
+	 * @param bounds the rectangle, in tif coordinates, or null if there is nothing to repaint
+	 */
+	public void repaintImageRegion(Rectangle2D bounds)
+	{
+		if(bounds==null)
+		{
+			return;
+		}
+		AffineTransform view=getViewTransform();
+		Rectangle2D screen=view.createTransformedShape(bounds).getBounds2D();
+		int margin=(int)Math.ceil(Math.max(scaleX(), scaleY()))+2;
+		repaint((int)Math.floor(screen.getX())-margin, (int)Math.floor(screen.getY())-margin, (int)Math.ceil(screen.getWidth())+2*margin, (int)Math.ceil(screen.getHeight())+2*margin);
+	}
+	
+	/**
+	 * Tells the frame that the dots or their connections have changed, so the path overlay must be rebuilt.
+	 */
+	public void invalidateOverlay()
+	{
+		overlayVersion++;
+		repaint();
 	}
 	
 	/**
 	 * Images created in the convertRenderedImage function don't render very fast at all. Images created with the Component's createImage function work much better. However, they can only be made once the image is added to a frame.
-	 * This method makes all the new BufferedImages, and starts the animation thread.
+	 * This method makes all the new BufferedImages.
 	 */
 	public void addNotify()
 	{
 		super.addNotify();
 		//Images created in the convertRenderedImage function don't render very fast at all. Images created with the Component's createImage function work much better.
-		for(int i=0;i<refinedImages.length;i++)
+		for(int i=0;i<refinedImages.length && !outOfCore;i++)
 		{
 			BufferedImage refined=(BufferedImage) createImage(imwidth,imheight);
 			
 			refinedImages[i]=refined;
 		}
-		animator.start();
 		setFocusable(true);
 		requestFocus();
 	}
@@ -183,7 +535,9 @@ public class ImageFrame extends Component
 	{
 		if (img instanceof BufferedImage) 
 		{
-			return (BufferedImage)img;	
+			BufferedImage buffered=(BufferedImage)img;
+			datas[index]=getData(buffered.getRaster());
+			return buffered;
 		}	
 		ColorModel cm = img.getColorModel();
 		int width = img.getWidth();
@@ -203,7 +557,131 @@ public class ImageFrame extends Component
 		BufferedImage result = new BufferedImage(cm, raster, isAlphaPremultiplied, properties);
 		img.copyData(raster);
 		
+		datas[index]=getData(raster);
 		
+		return result;
+	}
+	/**
+	 * 
+	 * @param index which frame
+	 * @return the raw data of that frame, indexed [x][y]. Out of core, it is converted again every time.
+	 */
+	public int[][] getData(int index)
+	{
+		if(datas[index]!=null)
+		{
+			return datas[index];
+		}
+		PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.CONVERT, index);
+		RenderedImage img=images[index];
+		int[][] data=getData(img instanceof BufferedImage?((BufferedImage)img).getRaster():img.getData());
+		span.end();
+		return data;
+	}
+	
+	/**
+	 * Gets the refined image of a frame. Out of core, it is colored from the tracker the first time it is shown, reusing the image of the frame shown longest ago.
+	 * Only called on the event dispatch thread.
+	 * @param index which frame
+	 * @return the refined image, or null if the frame has not been refined yet
+	 */
+	public BufferedImage getRefinedImage(int index)
+	{
+		if(!outOfCore || refinedImages[index]!=null)
+		{
+			return refinedImages[index];
+		}
+		if(Main.trackers==null || Main.trackers[index]==null)
+		{
+			return null;
+		}
+		BufferedImage refined=forgetOldestRefined();
+		if(refined==null)
+		{
+			refined=(BufferedImage) createImage(imwidth,imheight);
+			if(refined==null)
+			{
+				refined=new BufferedImage(imwidth,imheight,BufferedImage.TYPE_INT_RGB);
+			}
+		}
+		PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.COLOR, index);
+		Graphics g=refined.getGraphics();
+		Main.trackers[index].colorRefined(g);
+		g.dispose();
+		span.end();
+		refinedImages[index]=refined;
+		refinedShown.addLast(index);
+		return refined;
+	}
+	
+	/**
+	 * Out of core, colors a frame that has just been refined if it is the one shown or one of the next few, so that it is colored from the refined data
+	 * while that is still on the heap, instead of being read back from the PlaneStore when it is shown. It has to be called before the tracker is spilled.
+	 * Called on a RemakeJob's thread. It only guesses from the frame shown, so a frame it leaves alone is colored by getRefinedImage as usual.
+	 * @param index which frame
+	 * @param tracker its new tracker
+	 */
+	public void colorAhead(final int index, DotTracker tracker)
+	{
+		int shown=frame;
+		if(!outOfCore || index<shown || index>=shown+REFINED_WINDOW/2)
+		{
+			return;
+		}
+		final BufferedImage refined=new BufferedImage(imwidth,imheight,BufferedImage.TYPE_INT_RGB);
+		PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.COLOR, index);
+		Graphics g=refined.getGraphics();
+		tracker.colorRefined(g);
+		g.dispose();
+		span.end();
+		SwingUtilities.invokeLater(new Runnable()
+		{
+			public void run()
+			{
+				if(refinedImages[index]==null)
+				{
+					forgetOldestRefined();
+					refinedShown.addLast(index);
+				}
+				refinedImages[index]=refined;
+				if(index==frame)
+				{
+					repaint();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Makes room for one more refined image if the window is full, by forgetting the one colored longest ago, unless that is the frame being shown.
+	 * @return the forgotten image, to reuse, or null if there was room
+	 */
+	private BufferedImage forgetOldestRefined()
+	{
+		if(refinedShown.size()<REFINED_WINDOW)
+		{
+			return null;
+		}
+		int oldest=refinedShown.removeFirst();
+		if(oldest==frame)
+		{
+			refinedShown.addLast(oldest);
+			oldest=refinedShown.removeFirst();
+		}
+		BufferedImage refined=refinedImages[oldest];
+		refinedImages[oldest]=null;
+		return refined;
+	}
+	
+	/**
+	 * 
+	 * @param raster the raster to read
+	 * @return the first band of the raster as an int[][], indexed [x][y]
+	 */
+	private static int[][] getData(Raster raster)
+	{
+		int width=raster.getWidth();
+		int height=raster.getHeight();
 		int[][] data=new int[width][height];
 		
 		for(int x=0;x<width;x++)
@@ -213,30 +691,154 @@ public class ImageFrame extends Component
 				data[x][y]=raster.getSample(x, y, 0);
 			}
 		}
-		datas[index]=data;
-		
-		return result;
+		return data;
 	}
 	/**
 	 * Method to paint the correct image and then the correct paths. Called only by the AWT repaint manager.
 	 */
-	public void paint(Graphics g)
+	public void paint(Graphics graphics)
 	{
+		long beforeTime=System.nanoTime();
+		Graphics2D g=(Graphics2D) graphics;
+		int frame=this.frame;
+		PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.PAINT, frame);
+		AffineTransform view=getViewTransform();
+		
+		Rectangle clip=g.getClipBounds();
+		if(clip==null)
+		{
+			clip=new Rectangle(0,0,getWidth(),getHeight());
+		}
+		//the HUD is drawn on every paint that reaches it, but only whole paints change what it says
+		paintStats.startPaint(clip.x<=0 && clip.y<=0 && clip.x+clip.width>=getWidth() && clip.y+clip.height>=getHeight());
+		//the transform puts pixel centers half a pixel in, and circles stick out past their pixel, so leave a pixel of margin
+		//the paths are built for the whole screen, so that repainting a small part of it does not rebuild them
+		visibleMinX=(float) Math.floor(toImageX(0)-1);
+		visibleMinY=(float) Math.floor(toImageY(0)-1);
+		visibleMaxX=(float) Math.ceil(toImageX(getWidth())+1);
+		visibleMaxY=(float) Math.ceil(toImageY(getHeight())+1);
+		float clipMinX=(float) Math.floor(toImageX(clip.x)-1);
+		float clipMinY=(float) Math.floor(toImageY(clip.y)-1);
+		float clipMaxX=(float) Math.ceil(toImageX(clip.x+clip.width)+1);
+		float clipMaxY=(float) Math.ceil(toImageY(clip.y+clip.height)+1);
+		
 		if(image==REFINED)
 		{
-			g.drawImage(refinedImages[frame], 0, 0,getWidth(),getHeight(), null);
+			imageView.setTransform(view.getScaleX(), 0, 0, view.getScaleY(), -panX*view.getScaleX(), -panY*view.getScaleY());
+			BufferedImage refined=getRefinedImage(frame);
+			if(refined!=null)
+			{
+				g.drawImage(refined, imageView, null);
+			}
 		}
 		else if(image==BLANK)
 		{
 			g.setColor(Color.black);
-			g.fillRect(0, 0, getWidth(), getHeight());
+			g.fillRect(clip.x, clip.y, clip.width, clip.height);
+		}
+		paintStats.endPhase(PaintStats.Phase.BLIT);
+		
+		buildOverlay(frame);
+		down.paint(g, view, DOWN_COLOR);
+		up.paint(g, view, UP_COLOR);
+		paintStats.countPrimitives(down);
+		paintStats.countPrimitives(up);
+		paintStats.endPhase(PaintStats.Phase.PATHS);
+		
+		self.paint(g, view, SELF_COLOR);
+		paintStats.countPrimitives(self);
+		paintStats.endPhase(PaintStats.Phase.DOTS);
+		
+		past.clear();
+		present.clear();
+		future.clear();
+		past.setClip(clipMinX, clipMinY, clipMaxX, clipMaxY);
+		present.setClip(clipMinX, clipMinY, clipMaxX, clipMaxY);
+		future.setClip(clipMinX, clipMinY, clipMaxX, clipMaxY);
+		for(int i=Math.max(0, highlightStart);i<=highlightEnd && i<Main.trackers.length;i++)
+		{
+			if(i<frame)
+			{
+				Main.trackers[i].paintHighlighted(past);
+			}
+			else if(i>frame)
+			{
+				Main.trackers[i].paintHighlighted(future);
+			}
+			else
+			{
+				Main.trackers[i].paintHighlighted(present);
+			}
+		}
+		
+		hover.clear();
+		hover.setClip(clipMinX, clipMinY, clipMaxX, clipMaxY);
+		Dot hovered=this.hovered;
+		if(hovered!=null && hovered.tracker==Main.trackers[frame])
+		{
+			hovered.paintSelf(hover);
 		}
 		
-		if(paths==SHOWN_PATHS)
+		past.paint(g, view, Color.blue);
+		future.paint(g, view, Color.green);
+		present.paint(g, view, Color.red);
+		hover.paint(g, view, Color.yellow);
+		paintStats.countPrimitives(past);
+		paintStats.countPrimitives(future);
+		paintStats.countPrimitives(present);
+		paintStats.countPrimitives(hover);
+		paintStats.endPhase(PaintStats.Phase.HIGHLIGHT);
+		
+		if(showHud)
 		{
+			paintStats.paintHud(g, droppedFrames);
+		}
+		
+		span.end();
+		paintPending=false;
+		lastPaintTime=System.nanoTime()-beforeTime;
+		paintStats.endPaint(lastPaintTime);
+		if(playing)
+		{
+			animator.setDelay(Math.max(1000/fps, (int)(lastPaintTime/1000000)));
+		}
+	}
+	
+	/**
+	 * Fills the path buffers with the paths that should be shown on this frame, unless they are already filled with them.
+	 * @param frame the frame being painted
+	 */
+	private void buildOverlay(int frame)
+	{
+		int version=overlayVersion;
+		if(frame==builtFrame && paths==builtPaths && showDots==builtShowDots && rangeStart==builtRangeStart && rangeEnd==builtRangeEnd && version==builtVersion
+				&& visibleMinX==builtMinX && visibleMinY==builtMinY && visibleMaxX==builtMaxX && visibleMaxY==builtMaxY)
+		{
+			return;
+		}
+		builtFrame=frame;
+		builtPaths=paths;
+		builtShowDots=showDots;
+		builtRangeStart=rangeStart;
+		builtRangeEnd=rangeEnd;
+		builtVersion=version;
+		builtMinX=visibleMinX;
+		builtMinY=visibleMinY;
+		builtMaxX=visibleMaxX;
+		builtMaxY=visibleMaxY;
+		
+		down.clear();
+		up.clear();
+		self.clear();
+		down.setClip(visibleMinX, visibleMinY, visibleMaxX, visibleMaxY);
+		up.setClip(visibleMinX, visibleMinY, visibleMaxX, visibleMaxY);
+		self.setClip(visibleMinX, visibleMinY, visibleMaxX, visibleMaxY);
+		if(builtPaths==SHOWN_PATHS)
+		{
+			//the history of a dot can wander onto the screen from anywhere, so every dot on this frame has to be followed
 			for(Dot d:Main.trackers[frame].dots)
 			{
-				d.paint(g,showDots);
+				d.paint(down,up,self,builtShowDots);
 			}
 			
 			for(DotTracker tracker:Main.trackers)
@@ -247,59 +849,64 @@ public class ImageFrame extends Component
 				}
 			}
 		}
-		else if(paths==ALL_PATHS)
+		else if(builtPaths==ALL_PATHS)
 		{
-			for(DotTracker tracker:Main.trackers)
+			for(int i=0;i<Main.trackers.length;i++)
 			{
-				for(Dot d:tracker.dots)
-				{
-					d.paintOneDown(g);
-					if(showDots && tracker==Main.trackers[frame])
-					{
-						d.paintSelf(g);
-					}
-				}
+				paintVisibleDown(Main.trackers[i], builtShowDots && i==frame);
 			}
 		}
-		else if(paths==BETWEEN)
+		else if(builtPaths==BETWEEN)
 		{
-			for(int i=rangeStart;i<=rangeEnd;i++)
+			//the dots in range that can reach the screen are found all at once by the index, with the longest reach of any frame in range
+			int from=Math.max(0, builtRangeStart);
+			int to=Math.min(builtRangeEnd, Main.trackers.length-1);
+			double reach=0;
+			for(int i=from;i<=to;i++)
 			{
-				try
-				{
-					for(Dot d:Main.trackers[i].dots)
-					{
-						d.paintOneDown(g);
-						if(showDots && i==frame)
-						{
-							d.paintSelf(g);
-						}
-					}
-				}
-				catch(Exception e)
+				reach=Math.max(reach, Main.trackers[i].getReach());
+			}
+			visibleDots.clear();
+			Main.getIndex().dotsIn(visibleMinX-reach, visibleMinY-reach, visibleMaxX+reach, visibleMaxY+reach, from, to, visibleDots);
+			DotTracker shown=Main.trackers[frame];
+			for(Dot d:visibleDots)
+			{
+				d.paintOneDown(down);
+				if(builtShowDots && d.tracker==shown)
 				{
-					
+					d.paintSelf(self);
 				}
 			}
 		}
-		else if(paths==NO_PATHS && showDots)
+		else if(builtPaths==NO_PATHS && builtShowDots)
 		{
-			for(Dot d:Main.trackers[frame].dots)
+			visibleDots.clear();
+			Main.trackers[frame].getDotsIn(visibleMinX, visibleMinY, visibleMaxX, visibleMaxY, visibleDots);
+			for(Dot d:visibleDots)
 			{
-				d.paintSelf(g);
+				d.paintSelf(self);
 			}
 		}
-		for(int i=0;i<Main.trackers.length;i++)
+		visibleDots.clear();
+	}
+	
+	/**
+	 * Paints the connections from one frame to the next, and maybe the dots on it, looking only at dots that can reach the screen.
+	 * @param tracker the frame to paint
+	 * @param paintSelf whether to paint the dots themselves
+	 */
+	private void paintVisibleDown(DotTracker tracker, boolean paintSelf)
+	{
+		double reach=tracker.getReach();
+		visibleDots.clear();
+		tracker.getDotsIn(visibleMinX-reach, visibleMinY-reach, visibleMaxX+reach, visibleMaxY+reach, visibleDots);
+		for(Dot d:visibleDots)
 		{
-			if(i<frame)
-			{
-				Main.trackers[i].paintHighlighted(g, Color.blue);
-			}
-			else if(i>frame)
+			d.paintOneDown(down);
+			if(paintSelf)
 			{
-				Main.trackers[i].paintHighlighted(g, Color.green);
+				d.paintSelf(self);
 			}
 		}
-		Main.trackers[frame].paintHighlighted(g, Color.red);
 	}
 }
@@ -0,0 +1,145 @@
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * A histogram of durations in nanoseconds, with buckets that get wider as the durations get longer, like an HdrHistogram.
+ * Every value is kept to within about 3% of what it was, from one nanosecond up to hours, in a couple of thousand longs,
+ * so recording is one array increment, and percentiles can be read at any time.
+ * @author Henry Rachootin
+ *
+ */
+public class LatencyHistogram
+{
+	/**
+	 * Each power of two is split into 2^SUB_BUCKET_BITS buckets.
+	 */
+	private static final int SUB_BUCKET_BITS=5;
+	private static final int SUB_BUCKETS=1<<SUB_BUCKET_BITS;
+	/**
+	 * Values below this each get their own bucket.
+	 */
+	private static final int LINEAR=2*SUB_BUCKETS;
+
+	private final long[] counts=new long[LINEAR+(63-SUB_BUCKET_BITS)*SUB_BUCKETS];
+	private long total=0;
+	private long sum=0;
+	private long max=0;
+
+	/**
+	 * Records one duration.
+	 * @param nanos the duration, in nanoseconds
+	 */
+	public synchronized void record(long nanos)
+	{
+		if(nanos<0)
+		{
+			nanos=0;
+		}
+		counts[bucket(nanos)]++;
+		total++;
+		sum+=nanos;
+		max=Math.max(max, nanos);
+	}
+
+	/**
+	 *
+	 * @return how many durations have been recorded
+	 */
+	public synchronized long getCount()
+	{
+		return total;
+	}
+
+	/**
+	 *
+	 * @return the mean duration, in nanoseconds
+	 */
+	public synchronized double getMean()
+	{
+		return total==0?0:sum/(double)total;
+	}
+
+	/**
+	 *
+	 * @return the longest duration, in nanoseconds
+	 */
+	public synchronized long getMax()
+	{
+		return max;
+	}
+
+	/**
+	 *
+	 * @param percentile between 0 and 100
+	 * @return the duration that percentile of recorded durations are at or below, in nanoseconds
+	 */
+	public synchronized long getValueAtPercentile(double percentile)
+	{
+		if(total==0)
+		{
+			return 0;
+		}
+		long rank=Math.max(1, (long)Math.ceil(percentile/100d*total));
+		long seen=0;
+		for(int i=0;i<counts.length;i++)
+		{
+			seen+=counts[i];
+			if(seen>=rank)
+			{
+				return Math.min(max, highestValue(i));
+			}
+		}
+		return max;
+	}
+
+	/**
+	 * Forgets everything recorded.
+	 */
+	public synchronized void reset()
+	{
+		Arrays.fill(counts, 0);
+		total=0;
+		sum=0;
+		max=0;
+	}
+
+	/**
+	 * Writes every bucket with anything in it, as CSV lines of the bucket's highest value in milliseconds, its count, and the percentile of durations at or below it.
+	 * @param out where to write
+	 * @param name the first column of every line, i.e. which histogram it is
+	 */
+	public synchronized void write(PrintWriter out, String name)
+	{
+		long seen=0;
+		for(int i=0;i<counts.length;i++)
+		{
+			if(counts[i]>0)
+			{
+				seen+=counts[i];
+				out.println(name+","+highestValue(i)/1e6+","+counts[i]+","+100d*seen/total);
+			}
+		}
+	}
+
+	private static int bucket(long value)
+	{
+		if(value<LINEAR)
+		{
+			return (int)value;
+		}
+		int exponent=63-Long.numberOfLeadingZeros(value);
+		int shift=exponent-SUB_BUCKET_BITS;
+		return LINEAR+(shift-1)*SUB_BUCKETS+(int)((value>>shift)-SUB_BUCKETS);
+	}
+
+	private static long highestValue(int bucket)
+	{
+		if(bucket<LINEAR)
+		{
+			return bucket;
+		}
+		int shift=(bucket-LINEAR)/SUB_BUCKETS+1;
+		long sub=(bucket-LINEAR)%SUB_BUCKETS+SUB_BUCKETS;
+		return ((sub+1)<<shift)-1;
+	}
+}
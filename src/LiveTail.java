@@ -0,0 +1,153 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Watches a TIFF stack that is still being recorded, and says when frames are added to it. It follows the chain of image directories,
+ * remembering where the last one it found points to the next, so each poll only reads the directories that are new.
+ * A frame is only counted once a directory points to it, and the directory it points to is all there, so a frame that is still being written is not counted.
+ * TiffWriter writes frames in that order, as do the acquisition programs that can be watched this way.
+ * @author Henry Rachootin
+ *
+ */
+public abstract class LiveTail extends Thread
+{
+	private final File file;
+	private final long pollMillis;
+
+	private ByteOrder order;
+	/**
+	 * Where the pointer to the next directory is, once there is one. 4 is the pointer to the first directory, in the header.
+	 */
+	private long pointer=4;
+	private int count=0;
+	private int reported;
+
+	/**
+	 * Makes a tail for a stack. It does not start watching until it is started.
+	 * @param file the stack
+	 * @param known how many frames have already been read, and should not be reported
+	 * @param pollMillis how long to wait between looking for new frames, in milliseconds
+	 */
+	public LiveTail(File file, int known, long pollMillis)
+	{
+		super("tail");
+		setDaemon(true);
+		this.file=file;
+		this.reported=known;
+		this.pollMillis=pollMillis;
+	}
+
+	/**
+	 * Called on the tail's own thread when frames are added.
+	 * @param from the first new frame
+	 * @param to one after the last new frame
+	 */
+	abstract void framesAppended(int from, int to);
+
+	public void run()
+	{
+		while(!isInterrupted())
+		{
+			try
+			{
+				int frames=poll();
+				if(frames>reported)
+				{
+					framesAppended(reported, frames);
+					reported=frames;
+				}
+			}
+			catch(IOException e)
+			{
+				e.printStackTrace();
+			}
+			try
+			{
+				Thread.sleep(pollMillis);
+			}
+			catch(InterruptedException e)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Looks for new frames.
+	 * @return how many whole frames the stack has now
+	 * @throws IOException if the stack cannot be read, or is not a TIFF
+	 */
+	public synchronized int poll() throws IOException
+	{
+		if(!file.exists())
+		{
+			return count;
+		}
+		FileChannel channel=FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try
+		{
+			long size=channel.size();
+			ByteBuffer buffer=ByteBuffer.allocate(4);
+			if(order==null)
+			{
+				if(size<8)
+				{
+					return count;
+				}
+				read(channel, buffer, 0, 4);
+				if(buffer.get(0)=='I' && buffer.get(1)=='I')
+				{
+					order=ByteOrder.LITTLE_ENDIAN;
+				}
+				else if(buffer.get(0)=='M' && buffer.get(1)=='M')
+				{
+					order=ByteOrder.BIG_ENDIAN;
+				}
+				else
+				{
+					throw new IOException(file+" is not a TIFF");
+				}
+			}
+			buffer.order(order);
+			while(true)
+			{
+				read(channel, buffer, pointer, 4);
+				long offset=buffer.getInt(0)&0xFFFFFFFFL;
+				if(offset==0 || offset+2>size)
+				{
+					return count;
+				}
+				read(channel, buffer, offset, 2);
+				int entries=buffer.getShort(0)&0xFFFF;
+				long next=offset+2+entries*12L;
+				if(next+4>size)
+				{
+					return count; //the directory is not all there yet
+				}
+				pointer=next;
+				count++;
+			}
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+
+	private static void read(FileChannel channel, ByteBuffer buffer, long position, int bytes) throws IOException
+	{
+		buffer.clear();
+		buffer.limit(bytes);
+		while(buffer.hasRemaining())
+		{
+			if(channel.read(buffer, position+buffer.position())<0)
+			{
+				throw new IOException("Unexpected end of file");
+			}
+		}
+	}
+}
@@ -8,16 +8,13 @@ import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.RenderedImage;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.Arrays;
 
 import javax.media.jai.NullOpImage;
 import javax.media.jai.OpImage;
@@ -26,9 +23,11 @@ import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JMenu;
+import javax.swing.JMenuItem;
 import javax.swing.JPopupMenu;
 import javax.swing.JRadioButtonMenuItem;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 
 import com.sun.media.jai.codec.FileSeekableStream;
 import com.sun.media.jai.codec.ImageCodec;
@@ -44,6 +43,47 @@ public class Main
 
 	static String filePath;
 	static boolean foundValidTrackers=false;
+	static boolean foundValidDots=false;
+	/**
+	 * Writes the save, and checkpoints frames as they are refined.
+	 */
+	static AutoSave autoSave;
+	/**
+	 * Whether to keep the refined data in a memory mapped scratch file instead of on the heap, for stacks bigger than the heap. Set with -Dtrak.outOfCore=true
+	 */
+	static final boolean outOfCore="true".equals(System.getProperty("trak.outOfCore"));
+	/**
+	 * Where the refined data is kept, out of core.
+	 */
+	static PlaneStore store;
+	/**
+	 * Whether to watch the stack for new frames while it is being recorded. Set with -Dtrak.live=true
+	 */
+	static final boolean live="true".equals(System.getProperty("trak.live"));
+	private static final long LIVE_POLL_MILLIS=Long.getLong("trak.livePollMillis", 200);
+	private static LiveTail tail;
+	/**
+	 * The trackers of a live stack, including frames that were just added and do not have their dots yet, or null if there are no such frames.
+	 */
+	private static DotTracker[] pending;
+	/**
+	 * The dots the save has, or will have once the writer gets to it, if they were made with the cutoffs the trackers were. Null if the save has no dots that are still good.
+	 */
+	private static DotTable savedDots;
+	/**
+	 * The DOT_DISTANCE_CUTOFF and GAP_FRAMES the dots the trackers have now were connected with, which can be behind the controls while a job is remaking them.
+	 */
+	private static double linkedDistance;
+	private static int linkedGapFrames;
+	/**
+	 * The job remaking the dots, if there is one.
+	 */
+	private static RemakeJob job;
+	private static DotIndex index;
+	/**
+	 * How close the mouse has to be to a dot, in screen pixels, for the dot to be picked when hovering.
+	 */
+	private static final double HOVER_RADIUS=10;
 	
 	/**
 	 * process the arguments to the program
@@ -60,6 +100,26 @@ public class Main
 			filePath="For2Apugi003.tif";
 		}
 	}
+	/**
+	 * 
+	 * @param dec the decoder of the tiff
+	 * @param from the first frame to decode
+	 * @param to one after the last frame to decode
+	 * @return the frames
+	 * @throws IOException if the frames cannot be decoded
+	 */
+	private static RenderedImage[] decode(ImageDecoder dec, int from, int to) throws IOException
+	{
+		RenderedImage[] decoded=new RenderedImage[to-from];
+		for(int i=from;i<to;i++)
+		{
+			PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.DECODE, i);
+			decoded[i-from]= new NullOpImage(dec.decodeAsRenderedImage(i), null, null, OpImage.OP_IO_BOUND);
+			span.end();
+		}
+		return decoded;
+	}
+	
 	/**
 	 * Sets up all the images and trackers.
 	 * @throws IOException if the image cannot be loaded
@@ -72,61 +132,83 @@ public class Main
 
 		ImageDecoder dec= ImageCodec.createImageDecoder("tiff", stream, param);
 
-		images=new RenderedImage[TIFFDirectory.getNumDirectories(stream)];
+		images=decode(dec, 0, TIFFDirectory.getNumDirectories(stream));
 
 
 		System.out.println(images.length);
 
-		for(int i=0;i<images.length;i++)
-		{
-			images[i]= new NullOpImage(dec.decodeAsRenderedImage(i), null, null, OpImage.OP_IO_BOUND);
-		}
-
 		JFrame f=new JFrame("Trak");
-		im=new ImageFrame(images);
+		//compressed frames are browsed the same way as out of core ones, colored only when they are shown
+		im=new ImageFrame(images, outOfCore || DotTracker.COMPRESS_REFINED);
 
-		File save=new File(filePath+".trak");
-		if(save.exists())
+		trackers=new DotTracker[images.length];
+		if(outOfCore)
 		{
-			try
-			{
-				ObjectInputStream fromSave=new ObjectInputStream(new GZIPInputStream(new FileInputStream(save)));
-				trackers=(DotTracker[]) fromSave.readObject();
-
-				if(trackers.length!=images.length)
-				{
-					throw new IOException("Invalid Trackers");
-				}
-				foundValidTrackers=true;
-				System.out.println("Valid trackers found, not re-refining data");
-			}
-			catch(Exception e)
-			{
-
-			}
+			store=new PlaneStore(new File(filePath+".scratch"), images[0].getWidth(), images[0].getHeight(), images.length);
 		}
-
-		if(!foundValidTrackers)
+		
+		//only frames whose pixels or refining parameters changed are refined again
+		long[] hashes=new long[images.length];
+		for(int i=0;i<images.length;i++)
 		{
-			trackers=new DotTracker[images.length];
+			hashes[i]=DotTracker.hashPixels(im.getData(i));
 		}
+		autoSave=new AutoSave(filePath);
+		int reused=autoSave.load(trackers, hashes, store);
+		DotTable table=autoSave.getLoadedDots();
+		if(table!=null && table.matches(images.length, DotTracker.DOT_PEAK_INTENSITY_CUTOFF, DotTracker.DOT_DISTANCE_CUTOFF, DotTracker.GAP_FRAMES))
+		{
+			savedDots=table;
+		}
+		autoSave.resume(trackers, hashes, store); //frames refined by a run that stopped before it could save
 
 		f.add(im);
 		f.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		f.pack();
 		f.setLocationRelativeTo(null);
 		
-		for(int i=0;i<images.length;i++)
+		foundValidTrackers=reused==images.length;
+		System.out.println(reused+" of "+images.length+" frames were already refined");
+		for(int i=0;i<images.length && !im.outOfCore;i++)
 		{
-			if(!foundValidTrackers)
+			//out of core, frames are only colored when they are shown
+			if(trackers[i]!=null)
 			{
-				trackers[i]=new DotTracker(im.datas[i]);
+				PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.COLOR, i);
+				trackers[i].colorRefined(im.refinedImages[i].getGraphics());
+				span.end();
 			}
-			trackers[i].colorRefined(im.refinedImages[i].getGraphics());
-			System.out.println(i);
+		}
+		if(!foundValidTrackers)
+		{
+			savedDots=null; //they were found on the old refined data
 		}
 
-		remakeDots();
+		if(savedDots!=null)
+		{
+			savedDots.apply(trackers);
+			linkedDistance=DotTracker.DOT_DISTANCE_CUTOFF;
+			linkedGapFrames=DotTracker.GAP_FRAMES;
+			foundValidDots=true;
+			System.out.println("Valid dots found, not re-finding them");
+		}
+		else
+		{
+			//the frames that are left are refined, and have their dots found and connected, all at once
+			job=new RemakeJob(trackers, im);
+			job.execute();
+			try
+			{
+				if(!job.awaitRefined())
+				{
+					throw new IOException("Could not refine every frame");
+				}
+			}
+			catch(InterruptedException e)
+			{
+				throw new IOException("Interrupted while refining", e);
+			}
+		}
 		
 		f.setVisible(true);
 	}
@@ -149,6 +231,15 @@ public class Main
 		final JRadioButtonMenuItem refined=new JRadioButtonMenuItem("Refined");   image.add(refined); imageGroup.add(refined);
 		final JRadioButtonMenuItem blank=new JRadioButtonMenuItem("Blank"); image.add(blank); imageGroup.add(blank);
 		refined.setSelected(true);
+		final JMenu stats=new JMenu("Stats"); rightClick.add(stats);
+		final JCheckBoxMenuItem showHud=new JCheckBoxMenuItem("Show paint times (H)"); stats.add(showHud);
+		final JMenuItem exportPaint=new JMenuItem("Export paint histogram"); stats.add(exportPaint);
+		final JMenuItem resetPaint=new JMenuItem("Reset paint histogram"); stats.add(resetPaint);
+		final JMenuItem sweep=new JMenuItem("Sweep cutoffs"); stats.add(sweep);
+		final JMenu export=new JMenu("Export"); rightClick.add(export);
+		final JMenuItem exportCSV=new JMenuItem("Tracks as CSV"); export.add(exportCSV);
+		final JMenuItem exportColumns=new JMenuItem("Tracks as columns"); export.add(exportColumns);
+		final JMenuItem exportDiffusion=new JMenuItem("Diffusion analysis"); export.add(exportDiffusion);
 
 
 		im.addMouseListener(new MouseAdapter(){
@@ -161,18 +252,29 @@ public class Main
 				}
 				else if(e.getButton()==1)
 				{
-					for(DotTracker t:trackers)
+					//only the part of the screen covered by the old and new highlights has to be repainted
+					Rectangle2D dirty=null;
+					for(int i=Math.max(0, im.highlightStart);i<=im.highlightEnd && i<trackers.length;i++)
 					{
-						t.highlighted=null;
+						dirty=trackers[i].addHighlightBounds(dirty);
+						trackers[i].highlighted=null;
 					}
-					
+
 					ArrayList<Dot> generation=new ArrayList<Dot>();
-					generation.add(trackers[im.frame].closestDot(e.getX()/im.scaleX(),e.getY()/im.scaleY()));
+					Dot closest=trackers[im.frame].closestDot(im.toImageX(e.getX()),im.toImageY(e.getY()));
+					if(closest!=null)
+					{
+						generation.add(closest);
+					}
 					int i=im.frame;
-					while(!generation.isEmpty())
+					im.highlightStart=i;
+					//the dots reached across gaps, waiting for their frames. later.get(k) is for frame i+1+k
+					ArrayList<ArrayList<Dot>> later=new ArrayList<ArrayList<Dot>>();
+					while((!generation.isEmpty() || !later.isEmpty()) && i<trackers.length)
 					{
 						trackers[i].highlighted=generation;
-						ArrayList<Dot> newGen=new ArrayList<Dot>();
+						dirty=trackers[i].addHighlightBounds(dirty);
+						ArrayList<Dot> newGen=later.isEmpty()?new ArrayList<Dot>():later.remove(0);
 						for(Dot d:generation)
 						{
 							for(Dot childDot:d.getChildren())
@@ -182,14 +284,74 @@ public class Main
 									newGen.add(childDot);
 								}
 							}
+							for(Dot gapDot:d.getGapChildren())
+							{
+								int f=getIndex().getFrame(gapDot);
+								while(later.size()<f-i-1)
+								{
+									later.add(new ArrayList<Dot>());
+								}
+								if(!later.get(f-i-2).contains(gapDot))
+								{
+									later.get(f-i-2).add(gapDot);
+								}
+							}
 						}
 						generation=newGen;
 						i++;
 					}
+					im.highlightEnd=i-1;
+					im.repaintImageRegion(dirty);
 				}
 			}
 
 		});
+		MouseAdapter zoomAndPan=new MouseAdapter(){
+			int lastX;
+			int lastY;
+			
+			public void mousePressed(MouseEvent e)
+			{
+				lastX=e.getX();
+				lastY=e.getY();
+			}
+			
+			public void mouseDragged(MouseEvent e)
+			{
+				im.panBy(e.getX()-lastX, e.getY()-lastY);
+				lastX=e.getX();
+				lastY=e.getY();
+			}
+			
+			public void mouseMoved(MouseEvent e)
+			{
+				//pick anything within a few screen pixels of the mouse
+				double radius=Math.max(1, HOVER_RADIUS/im.scaleX());
+				Dot hovered=trackers[im.frame].closestDot(im.toImageX(e.getX()), im.toImageY(e.getY()), radius);
+				if(hovered!=im.hovered)
+				{
+					Rectangle2D dirty=null;
+					if(im.hovered!=null)
+					{
+						dirty=im.hovered.addBounds(dirty);
+					}
+					if(hovered!=null)
+					{
+						dirty=hovered.addBounds(dirty);
+					}
+					im.hovered=hovered;
+					im.repaintImageRegion(dirty);
+				}
+			}
+			
+			public void mouseWheelMoved(MouseWheelEvent e)
+			{
+				im.zoomAt(Math.pow(1.25, -e.getPreciseWheelRotation()), e.getX(), e.getY());
+			}
+		};
+		im.addMouseListener(zoomAndPan);
+		im.addMouseMotionListener(zoomAndPan);
+		im.addMouseWheelListener(zoomAndPan);
 		im.addKeyListener(new KeyAdapter(){
 			public void keyPressed(KeyEvent e)
 			{
@@ -197,18 +359,37 @@ public class Main
 				{
 					if(im.frame>0)
 					{
-						im.frame--;
-						im.repaint();
+						im.setFrame(im.frame-1);
 					}
 				}
 				else if(e.getKeyCode()==KeyEvent.VK_RIGHT)
 				{
 					if(im.frame<im.frames-1)
 					{
-						im.frame++;
-						im.repaint();
+						im.setFrame(im.frame+1);
 					}
 				}
+				else if(e.getKeyCode()==KeyEvent.VK_SPACE)
+				{
+					if(im.playing)
+					{
+						im.stop();
+					}
+					else
+					{
+						im.start();
+					}
+				}
+				else if(e.getKeyCode()==KeyEvent.VK_HOME)
+				{
+					im.resetView();
+				}
+				else if(e.getKeyCode()==KeyEvent.VK_H)
+				{
+					showHud.setSelected(!showHud.isSelected());
+					im.showHud=showHud.isSelected();
+					im.repaint();
+				}
 
 			}
 		});
@@ -219,6 +400,8 @@ public class Main
 		final JTextField intensity=new JTextField(DotTracker.DOT_PEAK_INTENSITY_CUTOFF+""); controls.add(intensity);
 		JLabel distLabel=new JLabel("Maximum travel distance (pixels)"); controls.add(distLabel);
 		final JTextField distance=new JTextField(DotTracker.DOT_DISTANCE_CUTOFF+""); controls.add(distance);
+		JLabel gapLabel=new JLabel("Frames a dot can be missed for (0 for none)"); controls.add(gapLabel);
+		final JTextField gap=new JTextField(DotTracker.GAP_FRAMES+""); controls.add(gap);
 
 		controls.add(new JLabel(" "));
 		controls.add(new JLabel(" "));
@@ -227,6 +410,12 @@ public class Main
 		final JTextField rStart=new JTextField(im.rangeStart+""); controls.add(rStart); rStart.setEnabled(false);
 		JLabel rEndLabel=new JLabel("Range End"); controls.add(rEndLabel);
 		final JTextField rEnd=new JTextField(im.rangeEnd+""); controls.add(rEnd);  rEnd.setEnabled(false);
+		
+		controls.add(new JLabel(" "));
+		controls.add(new JLabel(" "));
+		
+		JLabel fpsLabel=new JLabel("Playback speed (frames per second, space plays)"); controls.add(fpsLabel);
+		final JTextField fps=new JTextField(im.getFPS()+""); controls.add(fps);
 		controls.pack();
 		controls.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
 		controls.setVisible(true);
@@ -266,9 +455,42 @@ public class Main
 				{
 					im.image=ImageFrame.BLANK;
 				}
+				else if(source==showHud)
+				{
+					im.showHud=showHud.isSelected();
+				}
+				else if(source==exportPaint)
+				{
+					try
+					{
+						im.getPaintStats().export(filePath+".paint.csv");
+						System.out.println("Paint histogram written to "+filePath+".paint.csv");
+					}
+					catch(IOException er)
+					{
+						er.printStackTrace();
+					}
+				}
+				else if(source==resetPaint)
+				{
+					im.getPaintStats().reset();
+				}
+				else if(source==exportCSV || source==exportColumns)
+				{
+					export(source==exportCSV);
+				}
+				else if(source==exportDiffusion)
+				{
+					analyze();
+				}
+				else if(source==sweep)
+				{
+					sweep();
+				}
 
 				rStart.setEnabled(somePaths.isSelected());
 				rEnd.setEnabled(somePaths.isSelected());
+				im.repaint();
 			}
 
 		};
@@ -281,6 +503,14 @@ public class Main
 
 		refined.addActionListener(l);
 		blank.addActionListener(l);
+		
+		showHud.addActionListener(l);
+		exportPaint.addActionListener(l);
+		resetPaint.addActionListener(l);
+		exportCSV.addActionListener(l);
+		exportColumns.addActionListener(l);
+		exportDiffusion.addActionListener(l);
+		sweep.addActionListener(l);
 
 
 		final ActionListener controlListener=new ActionListener(){
@@ -308,13 +538,28 @@ public class Main
 							remakeConnections();
 						}
 					}
+					else if(source==gap)
+					{
+						int newGap=Math.max(0, Integer.parseInt(gap.getText()));
+						if(newGap!=DotTracker.GAP_FRAMES)
+						{
+							DotTracker.GAP_FRAMES=newGap;
+							remakeConnections();
+						}
+					}
 					else if(source==rStart)
 					{
 						im.rangeStart=Integer.parseInt(rStart.getText());
+						im.repaint();
 					}
 					else if(source==rEnd)
 					{
 						im.rangeEnd=Integer.parseInt(rEnd.getText());
+						im.repaint();
+					}
+					else if(source==fps)
+					{
+						im.setFPS(Integer.parseInt(fps.getText()));
 					}
 				}
 				catch(Exception er)
@@ -337,84 +582,346 @@ public class Main
 			};
 			intensity.addActionListener(controlListener);
 			distance.addActionListener(controlListener);
+			gap.addActionListener(controlListener);
 			rStart.addActionListener(controlListener);
 			rEnd.addActionListener(controlListener);
+			fps.addActionListener(controlListener);
 
 			intensity.addFocusListener(prentendJavascript);
 			distance.addFocusListener(prentendJavascript);
+			gap.addFocusListener(prentendJavascript);
 			rStart.addFocusListener(prentendJavascript);
 			rEnd.addFocusListener(prentendJavascript);
+			fps.addFocusListener(prentendJavascript);
 	}
 	
 	/**
-	 * saves all the trackers
-	 * @throws IOException if for some reason it cannot save
+	 * Writes the dots and their connections next to the tiff in the background. Should only be called on the event dispatch thread.
+	 * @param csv true for the two CSVs, false for the columnar file
 	 */
-	public static void save() throws IOException
+	public static void export(final boolean csv)
 	{
-		if(!foundValidTrackers)
+		final TrackExport export=new TrackExport(trackers);
+		new Thread("export")
 		{
-			File autoSave=new File(filePath+".trak");
-			ObjectOutputStream toSave=new ObjectOutputStream(new GZIPOutputStream(new FileOutputStream(autoSave)));
-			toSave.flush();
-			toSave.writeObject(trackers);
-			toSave.close();
+			public void run()
+			{
+				try
+				{
+					long start=System.nanoTime();
+					long dots;
+					if(csv)
+					{
+						dots=export.writeCSV(filePath+".dots.csv", filePath+".links.csv");
+					}
+					else
+					{
+						dots=export.writeColumns(filePath+".trakcol");
+					}
+					System.out.println(dots+" dots exported in "+(System.nanoTime()-start)/1000000+" ms");
+				}
+				catch(IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}.start();
+	}
+	
+	/**
+	 * Gets an index of the dots the trackers have now, for queries over space and time, i.e. painting the paths in a range of frames,
+	 * or finding the frame a highlight jumps to across a gap. It is made the first time it is needed after the dots change, and should only be used on the event dispatch thread.
+	 * @return the index
+	 */
+	public static DotIndex getIndex()
+	{
+		if(index==null || !index.isOf(trackers))
+		{
+			index=new DotIndex(trackers);
 		}
+		return index;
+	}
+	
+	/**
+	 * Works out the diffusion of the tracks on a thread of its own, and writes it next to the tiff, as described in TrackAnalysis.writeCSV.
+	 * The tracks are copied here, on the event dispatch thread, since a job that finishes while they are analyzed changes the dots' connections.
+	 */
+	public static void analyze()
+	{
+		final TrackAnalysis analysis=new TrackAnalysis(trackers, linkedDistance, linkedGapFrames);
+		new Thread("analysis")
+		{
+			public void run()
+			{
+				try
+				{
+					long start=System.nanoTime();
+					PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.ANALYZE, -1);
+					int tracks=analysis.analyze(Runtime.getRuntime().availableProcessors());
+					analysis.writeCSV(filePath);
+					span.end();
+					System.out.println(tracks+" tracks analyzed in "+(System.nanoTime()-start)/1000000+" ms");
+				}
+				catch(Exception e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}.start();
+	}
+	
+	/**
+	 * Tries every DOT_PEAK_INTENSITY_CUTOFF from 0.05 to 0.95 in steps of 0.05, with DOT_DISTANCE_CUTOFFs from a quarter of the current one to three times it,
+	 * on a thread of its own, and writes what each would make next to the tiff, as described in ParameterSweep.writeCSV.
+	 */
+	public static void sweep()
+	{
+		double[] intensities=new double[19];
+		for(int i=0;i<intensities.length;i++)
+		{
+			intensities[i]=(i+1)/20.0;
+		}
+		double[] distances=new double[12];
+		for(int i=0;i<distances.length;i++)
+		{
+			distances[i]=DotTracker.DOT_DISTANCE_CUTOFF*(i+1)/4;
+		}
+		final ParameterSweep parameterSweep=new ParameterSweep(trackers, intensities, distances);
+		new Thread("sweep")
+		{
+			public void run()
+			{
+				try
+				{
+					long start=System.nanoTime();
+					parameterSweep.run();
+					parameterSweep.writeCSV(filePath+".sweep.csv");
+					System.out.println("Sweep written to "+filePath+".sweep.csv in "+(System.nanoTime()-start)/1000000+" ms");
+				}
+				catch(IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}.start();
+	}
+	
+	/**
+	 * Called by a RemakeJob, on one of its own threads, whenever it refines a frame. The frame is colored, spilled out of core if need be,
+	 * and checkpointed. Out of core, only a frame that is about to be shown is colored, and before it is spilled, so its refined data is not read back to show it.
+	 * @param frame which frame
+	 * @param tracker its new tracker
+	 */
+	static void frameRefined(int frame, DotTracker tracker)
+	{
+		im.colorAhead(frame, tracker);
+		if(store!=null)
+		{
+			tracker.spill(store, frame);
+		}
+		autoSave.checkpoint(frame, tracker);
+		if(!im.outOfCore)
+		{
+			PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.COLOR, frame);
+			tracker.colorRefined(im.refinedImages[frame].getGraphics());
+			span.end();
+		}
+	}
+	
+	/**
+	 * Called on the event dispatch thread when a RemakeJob has given the trackers new dots. Unless the save already has the same dots, made from the same frames
+	 * with the same cutoffs, it saves them in the background, so the next time this stack is opened with these cutoffs none of it has to be done again.
+	 * @param job the job that made the dots
+	 */
+	static void dotsMade(RemakeJob job)
+	{
+		index=null;
+		linkedDistance=job.getDistanceCutoff();
+		linkedGapFrames=job.getGapFrames();
+		if(savedDots!=null && savedDots.matches(trackers.length, job.getIntensityCutoff(), job.getDistanceCutoff(), job.getGapFrames()))
+		{
+			return;
+		}
+		savedDots=new DotTable(trackers, job.getIntensityCutoff(), job.getDistanceCutoff(), job.getGapFrames());
+		autoSave.save(trackers, savedDots);
 	}
 	
 	public static void main(String[] args) throws IOException
 	{
 
 		settupArgs(args);
+		
+		if(live)
+		{
+			waitForFirstFrame();
+		}
+		
+		Runtime.getRuntime().addShutdownHook(new Thread("report")
+		{
+			public void run()
+			{
+				try
+				{
+					PipelineStats.get().writeReport(filePath+".report.json");
+				}
+				catch(IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		});
 
 		settupImages();
 
 		im.showDots=true;
 		im.paths=ImageFrame.SHOWN_PATHS;
+		im.repaint();
 
 		settupInput();
 
-		save();
+		if(live)
+		{
+			startLive();
+		}
 
 		System.out.println("done");
 	}
 	
 	/**
-	 * remakes all the dots. Perhaps their was an algorithm change.
+	 * remakes all the dots, in the background. Perhaps their was an algorithm change.
 	 */
 	public static void remakeDots()
 	{
-		int popPathState=im.paths; //Pop it like a stack (SPOILERS: IT IS)
-		boolean popDotState=im.showDots;
-
-		im.paths=ImageFrame.NO_PATHS;
-		im.showDots=false;
-		for(DotTracker tracker:trackers)
+		remake(true);
+	}
+	/**
+	 * remakes all the connections between dots, in the background.
+	 */
+	public static void remakeConnections()
+	{
+		remake(false);
+	}
+	/**
+	 * Starts a job to remake the dots, cancelling the one before it if it is still going. Should only be called on the event dispatch thread.
+	 * @param redetect true to find the dots again, false to only connect them again
+	 */
+	private static void remake(boolean redetect)
+	{
+		DotTracker[] all=trackers;
+		if(job!=null && !job.isDone())
 		{
-			tracker.assignDots();
+			//if the job being replaced was going to find new dots, they still have to be found
+			redetect|=job.redetects();
+			job.cancel(true);
 		}
-		remakeConnections();
-
-		im.paths=popPathState;
-		im.showDots=popDotState;
+		if(pending!=null)
+		{
+			//frames added to a live stack that do not have their dots yet
+			all=pending;
+			redetect=true;
+		}
+		job=redetect?new RemakeJob(all,im):new RemakeJob(all,false);
+		job.execute();
 	}
+	
 	/**
-	 * remakes all the connections between dots.
+	 * Called on the event dispatch thread by the live tail, when frames are added to the stack. The new frames, and any frames a job was still working on,
+	 * are refined and have their dots found and connected in the background, and can be shown once that is done.
+	 * @param more the new frames
 	 */
-	public static void remakeConnections()
+	static void addFrames(RenderedImage[] more)
 	{
-		int popPathState=im.paths; //Pop it like a stack
-		boolean popDotState=im.showDots;
-
-		im.paths=ImageFrame.NO_PATHS;
-		im.showDots=false;
-
-		for(int i=0;i<trackers.length-1;i++)
+		int first=images.length;
+		RenderedImage[] grown=Arrays.copyOf(images, images.length+more.length);
+		System.arraycopy(more, 0, grown, images.length, more.length);
+		images=grown;
+		im.addImages(more);
+		if(store!=null)
 		{
-			trackers[i].assignAllBecomes(trackers[i+1]);
+			store.ensureFrames(images.length);
 		}
-
-		im.paths=popPathState;
-		im.showDots=popDotState;
+		pending=Arrays.copyOf(pending!=null?pending:trackers, images.length);
+		if(job!=null && !job.isDone())
+		{
+			first=Math.min(first, job.redetects()?job.getFirstFrame():0);
+			job.cancel(true);
+		}
+		job=new RemakeJob(pending, im, first);
+		job.execute();
+	}
+	
+	/**
+	 * Called on the event dispatch thread by a RemakeJob when it is done, before it gives the trackers their dots.
+	 * If frames were added to the stack, the trackers with them replace the old ones.
+	 * @param all the trackers the job worked on
+	 */
+	static void trackersReady(DotTracker[] all)
+	{
+		if(all!=trackers)
+		{
+			trackers=all;
+			if(pending==all)
+			{
+				pending=null;
+			}
+			im.setFrames(all.length);
+		}
+	}
+	
+	/**
+	 * In live mode, the stack might not have any frames yet when Trak starts. Nothing can be set up without a frame, so this waits for one.
+	 */
+	private static void waitForFirstFrame() throws IOException
+	{
+		LiveTail first=new LiveTail(new File(filePath), 0, LIVE_POLL_MILLIS)
+		{
+			void framesAppended(int from, int to)
+			{
+			}
+		};
+		while(first.poll()==0)
+		{
+			try
+			{
+				Thread.sleep(LIVE_POLL_MILLIS);
+			}
+			catch(InterruptedException e)
+			{
+				throw new IOException("Interrupted while waiting for the first frame", e);
+			}
+		}
+	}
+	
+	/**
+	 * Starts watching the stack for frames added while it is being recorded. Every batch of new frames is decoded with one stream and decoder,
+	 * kept open for as long as Trak runs, since the frames are decoded lazily and need the stream. The decoder counts the frames again
+	 * each time it decodes one, so it finds the new ones.
+	 * @throws IOException if the stack cannot be opened
+	 */
+	static void startLive() throws IOException
+	{
+		final ImageDecoder dec=ImageCodec.createImageDecoder("tiff", new FileSeekableStream(filePath), null);
+		tail=new LiveTail(new File(filePath), images.length, LIVE_POLL_MILLIS)
+		{
+			void framesAppended(int from, int to)
+			{
+				try
+				{
+					final RenderedImage[] more=decode(dec, from, to);
+					SwingUtilities.invokeLater(new Runnable()
+					{
+						public void run()
+						{
+							addFrames(more);
+						}
+					});
+				}
+				catch(IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		};
+		tail.start();
 	}
 }
@@ -0,0 +1,178 @@
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Path2D;
+
+/**
+ * A reusable buffer of overlay geometry (lines between dots and circles at dots), stored in image coordinates as primitive floats.
+ * The geometry is built once, and then painted as one stroke and one fill, with the screen transform applied once to the whole buffer.
+ * Painting a line per Graphics call is very slow when there are a lot of dots.
+ * @author Henry Rachootin
+ *
+ */
+public class OverlayBuffer
+{
+	private float[] lines=new float[256];
+	private int lineCoords=0;
+
+	private float[] points=new float[64];
+	private int pointCoords=0;
+
+	private float clipMinX=Float.NEGATIVE_INFINITY;
+	private float clipMinY=Float.NEGATIVE_INFINITY;
+	private float clipMaxX=Float.POSITIVE_INFINITY;
+	private float clipMaxY=Float.POSITIVE_INFINITY;
+
+	private float[] screen=new float[256];
+	private final Path2D.Float path=new Path2D.Float();
+
+	/**
+	 * Empties the buffer, keeping the memory around for the next frame.
+	 */
+	public void clear()
+	{
+		lineCoords=0;
+		pointCoords=0;
+	}
+
+	/**
+	 * Sets the rectangle, in image coordinates, that is on the screen. Lines and circles entirely outside of it are not added.
+	 */
+	public void setClip(float minX, float minY, float maxX, float maxY)
+	{
+		clipMinX=minX;
+		clipMinY=minY;
+		clipMaxX=maxX;
+		clipMaxY=maxY;
+	}
+
+	/**
+	 * Adds a line between two points in image coordinates.
+	 */
+	public void addLine(float x1, float y1, float x2, float y2)
+	{
+		if(Math.max(x1, x2)<clipMinX || Math.min(x1, x2)>clipMaxX || Math.max(y1, y2)<clipMinY || Math.min(y1, y2)>clipMaxY)
+		{
+			return;
+		}
+		if(lineCoords+4>lines.length)
+		{
+			lines=grow(lines,lineCoords+4);
+		}
+		lines[lineCoords++]=x1;
+		lines[lineCoords++]=y1;
+		lines[lineCoords++]=x2;
+		lines[lineCoords++]=y2;
+	}
+
+	/**
+	 * Adds a circle at a point in image coordinates. It will be the size of one image pixel.
+	 */
+	public void addPoint(float x, float y)
+	{
+		if(x+1<clipMinX || x-1>clipMaxX || y+1<clipMinY || y-1>clipMaxY)
+		{
+			return;
+		}
+		if(pointCoords+2>points.length)
+		{
+			points=grow(points,pointCoords+2);
+		}
+		points[pointCoords++]=x;
+		points[pointCoords++]=y;
+	}
+
+	/**
+	 *
+	 * @return the number of lines in the buffer
+	 */
+	public int lineCount()
+	{
+		return lineCoords/4;
+	}
+
+	/**
+	 *
+	 * @return the number of circles in the buffer
+	 */
+	public int pointCount()
+	{
+		return pointCoords/2;
+	}
+
+	/**
+	 * Paints all the lines, then all the circles in the buffer.
+	 * @param g the graphics to paint to
+	 * @param view the transform from image coordinates to screen coordinates. It must only scale and translate.
+	 * @param c the color to paint in
+	 */
+	public void paint(Graphics2D g, AffineTransform view, Color c)
+	{
+		if(lineCoords==0 && pointCoords==0)
+		{
+			return;
+		}
+		g.setColor(c);
+		if(lineCoords>0)
+		{
+			if(screen.length<lineCoords)
+			{
+				screen=grow(screen,lineCoords);
+			}
+			view.transform(lines, 0, screen, 0, lineCoords/2);
+			path.reset();
+			for(int i=0;i<lineCoords;i+=4)
+			{
+				path.moveTo(screen[i], screen[i+1]);
+				path.lineTo(screen[i+2], screen[i+3]);
+			}
+			g.draw(path);
+		}
+		if(pointCoords>0)
+		{
+			if(screen.length<pointCoords)
+			{
+				screen=grow(screen,pointCoords);
+			}
+			view.transform(points, 0, screen, 0, pointCoords/2);
+			float w=(float) view.getScaleX();
+			float h=(float) view.getScaleY();
+			path.reset();
+			for(int i=0;i<pointCoords;i+=2)
+			{
+				appendOval(screen[i]-w/2-1, screen[i+1]-h/2-1, w+1, h+1);
+			}
+			g.fill(path);
+		}
+	}
+
+	/**
+	 * Appends an oval to the path, approximated by four cubic curves, like Ellipse2D does.
+	 */
+	private void appendOval(float x, float y, float w, float h)
+	{
+		final float k=0.5522848f; //how far out the control points go for a circle
+		float rx=w/2;
+		float ry=h/2;
+		float cx=x+rx;
+		float cy=y+ry;
+		path.moveTo(cx+rx, cy);
+		path.curveTo(cx+rx, cy+ry*k, cx+rx*k, cy+ry, cx, cy+ry);
+		path.curveTo(cx-rx*k, cy+ry, cx-rx, cy+ry*k, cx-rx, cy);
+		path.curveTo(cx-rx, cy-ry*k, cx-rx*k, cy-ry, cx, cy-ry);
+		path.curveTo(cx+rx*k, cy-ry, cx+rx, cy-ry*k, cx+rx, cy);
+		path.closePath();
+	}
+
+	private static float[] grow(float[] array, int needed)
+	{
+		int newLength=array.length*2;
+		while(newLength<needed)
+		{
+			newLength*=2;
+		}
+		float[] bigger=new float[newLength];
+		System.arraycopy(array, 0, bigger, 0, array.length);
+		return bigger;
+	}
+}
@@ -0,0 +1,219 @@
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Measures how long ImageFrame takes to paint, as a whole and in each phase, so that stutters can be explained and rendering changes compared.
+ * It can draw a HUD with the frame rate, paint times and the number of primitives drawn, and write all its histograms to a CSV.
+ * Only paints of the whole frame are measured. A paint of part of it, i.e. where a highlight changed, is much quicker, and would make the frame rate and paint times look better than they are.
+ * @author Henry Rachootin
+ *
+ */
+public class PaintStats
+{
+	/**
+	 * The phases of a paint, in the order they happen.
+	 */
+	public enum Phase
+	{
+		TOTAL, BLIT, PATHS, DOTS, HIGHLIGHT
+	}
+
+	private final LatencyHistogram[] histograms=new LatencyHistogram[Phase.values().length];
+	private final long[] lastNanos=new long[Phase.values().length];
+
+	/**
+	 * When the last few paints happened, to work out the frame rate.
+	 */
+	private final long[] paintTimes=new long[64];
+	private int paintIndex=0;
+	private int paints=0;
+
+	private int primitives=0;
+	private long phaseStart;
+	/**
+	 * Whether the paint going on is being measured, because it is of the whole frame.
+	 */
+	private boolean measuring;
+
+	private static final Font HUD_FONT=new Font(Font.MONOSPACED, Font.PLAIN, 12);
+	private static final Color HUD_BACKGROUND=new Color(0,0,0,160);
+
+	public PaintStats()
+	{
+		for(int i=0;i<histograms.length;i++)
+		{
+			histograms[i]=new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Starts timing a paint. The phases are then timed one after another, each ending where the next starts.
+	 * @param whole whether the paint is of the whole frame. If not, nothing about it is measured.
+	 */
+	public void startPaint(boolean whole)
+	{
+		measuring=whole;
+		if(!whole)
+		{
+			return;
+		}
+		long now=System.nanoTime();
+		paintTimes[paintIndex]=now;
+		paintIndex=(paintIndex+1)%paintTimes.length;
+		paints++;
+		phaseStart=now;
+		primitives=0;
+	}
+
+	/**
+	 * Ends a phase, and starts the next.
+	 * @param phase the phase that just ended
+	 */
+	public void endPhase(Phase phase)
+	{
+		if(!measuring)
+		{
+			return;
+		}
+		long now=System.nanoTime();
+		record(phase, now-phaseStart);
+		phaseStart=now;
+	}
+
+	/**
+	 * Ends the paint.
+	 * @param totalNanos how long the whole paint took
+	 */
+	public void endPaint(long totalNanos)
+	{
+		if(!measuring)
+		{
+			return;
+		}
+		record(Phase.TOTAL, totalNanos);
+	}
+
+	private void record(Phase phase, long nanos)
+	{
+		histograms[phase.ordinal()].record(nanos);
+		lastNanos[phase.ordinal()]=nanos;
+	}
+
+	/**
+	 * Counts lines and circles drawn this paint.
+	 * @param b a buffer that was just painted
+	 */
+	public void countPrimitives(OverlayBuffer b)
+	{
+		if(!measuring)
+		{
+			return;
+		}
+		primitives+=b.lineCount()+b.pointCount();
+	}
+
+	/**
+	 *
+	 * @param phase which phase
+	 * @return the histogram of that phase's durations
+	 */
+	public LatencyHistogram getHistogram(Phase phase)
+	{
+		return histograms[phase.ordinal()];
+	}
+
+	/**
+	 *
+	 * @return how many paints happened per second, over the last few paints
+	 */
+	public double getFPS()
+	{
+		int n=Math.min(paints, paintTimes.length);
+		if(n<2)
+		{
+			return 0;
+		}
+		long newest=paintTimes[(paintIndex-1+paintTimes.length)%paintTimes.length];
+		long oldest=paintTimes[(paintIndex-n+paintTimes.length)%paintTimes.length];
+		if(newest==oldest)
+		{
+			return 0;
+		}
+		return (n-1)*1e9/(newest-oldest);
+	}
+
+	/**
+	 * Draws the HUD in the top left corner.
+	 * @param g the graphics to draw to, in screen coordinates
+	 * @param droppedFrames how many frames playback has skipped
+	 */
+	public void paintHud(Graphics2D g, long droppedFrames)
+	{
+		LatencyHistogram total=getHistogram(Phase.TOTAL);
+		String[] lines={
+				String.format("%.1f fps, %d dropped", getFPS(), droppedFrames),
+				String.format("paint p50 %.2f ms, p99 %.2f ms", total.getValueAtPercentile(50)/1e6, total.getValueAtPercentile(99)/1e6),
+				String.format("blit %.2f paths %.2f dots %.2f highlight %.2f", lastNanos[Phase.BLIT.ordinal()]/1e6, lastNanos[Phase.PATHS.ordinal()]/1e6, lastNanos[Phase.DOTS.ordinal()]/1e6, lastNanos[Phase.HIGHLIGHT.ordinal()]/1e6),
+				primitives+" primitives"
+		};
+		g.setFont(HUD_FONT);
+		FontMetrics metrics=g.getFontMetrics();
+		int width=0;
+		for(String line:lines)
+		{
+			width=Math.max(width, metrics.stringWidth(line));
+		}
+		int lineHeight=metrics.getHeight();
+		g.setColor(HUD_BACKGROUND);
+		g.fillRect(0, 0, width+8, lineHeight*lines.length+8);
+		g.setColor(Color.white);
+		for(int i=0;i<lines.length;i++)
+		{
+			g.drawString(lines[i], 4, 4+metrics.getAscent()+i*lineHeight);
+		}
+	}
+
+	/**
+	 * Writes every phase's histogram to a CSV, with columns phase, milliseconds, count, percentile.
+	 * @param path where to write it
+	 * @throws IOException if it cannot be written
+	 */
+	public void export(String path) throws IOException
+	{
+		PrintWriter out=new PrintWriter(new BufferedWriter(new FileWriter(path)));
+		try
+		{
+			out.println("phase,millis,count,percentile");
+			for(Phase phase:Phase.values())
+			{
+				getHistogram(phase).write(out, phase.name());
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		if(out.checkError())
+		{
+			throw new IOException("Could not write "+path);
+		}
+	}
+
+	/**
+	 * Forgets every paint measured so far.
+	 */
+	public void reset()
+	{
+		for(LatencyHistogram histogram:histograms)
+		{
+			histogram.reset();
+		}
+		paints=0;
+	}
+}
@@ -0,0 +1,381 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Tries a whole grid of DOT_PEAK_INTENSITY_CUTOFFs and DOT_DISTANCE_CUTOFFs at once, and reports what each would make: how many dots, how many links,
+ * how many children a dot that has any has on average, and how many tracks there would be and how long they would be on average, with tracks as in TrackExport.
+ * <p>
+ * The peaks are only found once, with the lowest intensity cutoff, since a higher cutoff keeps a subset of the same peaks: the ones brighter than it.
+ * Every pair of peaks on neighboring frames closer than the highest distance cutoff is found once too, and sorted by distance.
+ * A pair is a link at a grid point if both its peaks are brighter than the intensity cutoff and it is shorter than the distance cutoff, so for each intensity cutoff,
+ * the pairs are added in order of distance, keeping count of what they make, and the counts are read off as each distance cutoff is passed.
+ * Sibling connections and gap closing do not change any of the counts, so they are left out.
+ * @author Henry Rachootin
+ *
+ */
+public class ParameterSweep
+{
+	private final DotTracker[] trackers;
+	private final double[] intensities;
+	private final double[] distances;
+
+	/**
+	 * The peaks on every frame, numbered across the whole stack, the brightness of each, and where each frame's peaks start.
+	 */
+	private int[] xs;
+	private int[] ys;
+	private double[] values;
+	private int[] frameStart;
+
+	/**
+	 * The candidate pairs: the peak on a frame, the peak on the next frame, the squared distance between them,
+	 * and the brightness of the dimmer one. The order of the pairs, shortest first.
+	 */
+	private int[] from;
+	private int[] to;
+	private int[] squaredDistance;
+	private double[] dimmer;
+	private int pairs;
+	private int[] order;
+
+	private long[][] dots;
+	private long[][] links;
+	private long[][] parents;
+	private long[][] continuations;
+
+	/**
+	 * @param trackers the trackers, which must be refined
+	 * @param intensities the DOT_PEAK_INTENSITY_CUTOFFs to try
+	 * @param distances the DOT_DISTANCE_CUTOFFs to try
+	 */
+	public ParameterSweep(DotTracker[] trackers, double[] intensities, double[] distances)
+	{
+		this.trackers=trackers;
+		this.intensities=intensities.clone();
+		this.distances=distances.clone();
+		Arrays.sort(this.intensities);
+		Arrays.sort(this.distances);
+	}
+
+	/**
+	 * Finds the peaks and pairs, and works out the counts at every grid point.
+	 */
+	public void run()
+	{
+		int ni=intensities.length;
+		int nd=distances.length;
+		dots=new long[ni][nd];
+		links=new long[ni][nd];
+		parents=new long[ni][nd];
+		continuations=new long[ni][nd];
+		if(ni==0 || nd==0)
+		{
+			return;
+		}
+		findPeaks(intensities[0]);
+		findPairs(distances[nd-1]);
+
+		double[] sortedValues=new double[values.length];
+		int[] outDegree=new int[values.length];
+		int[] inDegree=new int[values.length];
+		int[] onlyChild=new int[values.length];
+		int[] onlyParent=new int[values.length];
+		System.arraycopy(values, 0, sortedValues, 0, values.length);
+		Arrays.sort(sortedValues);
+		for(int i=0;i<ni;i++)
+		{
+			double cutoff=intensities[i];
+			//peaks brighter than the cutoff
+			int brighter=sortedValues.length-upperBound(sortedValues, cutoff);
+			Arrays.fill(outDegree, 0);
+			Arrays.fill(inDegree, 0);
+			long linkCount=0;
+			long parentCount=0;
+			long oneToOne=0;
+			int d=0;
+			for(int p=0;p<pairs;p++)
+			{
+				int pair=order[p];
+				if(dimmer[pair]<=cutoff)
+				{
+					continue;
+				}
+				double length=Math.sqrt(squaredDistance[pair]);
+				//every distance cutoff this pair is not shorter than has all its links already
+				while(d<nd && distances[d]<=length)
+				{
+					record(i, d++, brighter, linkCount, parentCount, oneToOne);
+				}
+				if(d==nd)
+				{
+					break;
+				}
+				int a=from[pair];
+				int b=to[pair];
+				//a link stops being one to one when either end gets a second one
+				if(outDegree[a]==1 && inDegree[onlyChild[a]]==1)
+				{
+					oneToOne--;
+				}
+				if(inDegree[b]==1 && outDegree[onlyParent[b]]==1)
+				{
+					oneToOne--;
+				}
+				if(outDegree[a]++==0)
+				{
+					onlyChild[a]=b;
+					parentCount++;
+				}
+				if(inDegree[b]++==0)
+				{
+					onlyParent[b]=a;
+				}
+				if(outDegree[a]==1 && inDegree[b]==1)
+				{
+					oneToOne++;
+				}
+				linkCount++;
+			}
+			while(d<nd)
+			{
+				record(i, d++, brighter, linkCount, parentCount, oneToOne);
+			}
+		}
+	}
+
+	private void record(int i, int d, long dotCount, long linkCount, long parentCount, long oneToOne)
+	{
+		dots[i][d]=dotCount;
+		links[i][d]=linkCount;
+		parents[i][d]=parentCount;
+		continuations[i][d]=oneToOne;
+	}
+
+	/**
+	 *
+	 * @return the index of the first value greater than the key, in a sorted array
+	 */
+	private static int upperBound(double[] sorted, double key)
+	{
+		int low=0;
+		int high=sorted.length;
+		while(low<high)
+		{
+			int mid=(low+high)>>>1;
+			if(sorted[mid]<=key)
+			{
+				low=mid+1;
+			}
+			else
+			{
+				high=mid;
+			}
+		}
+		return low;
+	}
+
+	private void findPeaks(double cutoff)
+	{
+		frameStart=new int[trackers.length+1];
+		xs=new int[256];
+		ys=new int[256];
+		values=new double[256];
+		int count=0;
+		for(int f=0;f<trackers.length;f++)
+		{
+			frameStart[f]=count;
+			PeakFinder finder=trackers[f].findPeaks(cutoff);
+			int peaks=finder.size();
+			if(count+peaks>xs.length)
+			{
+				int size=Math.max(count+peaks, xs.length*2);
+				xs=Arrays.copyOf(xs, size);
+				ys=Arrays.copyOf(ys, size);
+				values=Arrays.copyOf(values, size);
+			}
+			for(int p=0;p<peaks;p++)
+			{
+				xs[count]=finder.getX(p);
+				ys[count]=finder.getY(p);
+				values[count]=trackers[f].getIntensity(xs[count], ys[count]);
+				count++;
+			}
+		}
+		frameStart[trackers.length]=count;
+		xs=Arrays.copyOf(xs, count);
+		ys=Arrays.copyOf(ys, count);
+		values=Arrays.copyOf(values, count);
+	}
+
+	/**
+	 * Finds the pairs of peaks on neighboring frames closer than a distance, by sorting each frame's peaks by x, and only looking at the ones in reach of x.
+	 */
+	private void findPairs(double cutoff)
+	{
+		from=new int[256];
+		to=new int[256];
+		squaredDistance=new int[256];
+		dimmer=new double[256];
+		pairs=0;
+		int reach=(int)Math.ceil(cutoff);
+		for(int f=0;f+1<trackers.length;f++)
+		{
+			long[] byX=sortByX(frameStart[f+1], frameStart[f+2]);
+			for(int a=frameStart[f];a<frameStart[f+1];a++)
+			{
+				int start=lowerBound(byX, xs[a]-reach);
+				for(int i=start;i<byX.length && (int)(byX[i]>>32)<=xs[a]+reach;i++)
+				{
+					int b=(int)byX[i];
+					int dx=xs[b]-xs[a];
+					int dy=ys[b]-ys[a];
+					int square=dx*dx+dy*dy;
+					if(Math.sqrt(square)<cutoff)
+					{
+						addPair(a, b, square, Math.min(values[a], values[b]));
+					}
+				}
+			}
+		}
+		//shortest first, by packing the squared distance above the pair's number
+		long[] keys=new long[pairs];
+		for(int p=0;p<pairs;p++)
+		{
+			keys[p]=((long)squaredDistance[p]<<32)|p;
+		}
+		Arrays.sort(keys);
+		order=new int[pairs];
+		for(int p=0;p<pairs;p++)
+		{
+			order[p]=(int)keys[p];
+		}
+	}
+
+	/**
+	 *
+	 * @return the peaks from start to end, as their x above their number, sorted
+	 */
+	private long[] sortByX(int start, int end)
+	{
+		long[] byX=new long[end-start];
+		for(int b=start;b<end;b++)
+		{
+			byX[b-start]=((long)xs[b]<<32)|b;
+		}
+		Arrays.sort(byX);
+		return byX;
+	}
+
+	/**
+	 *
+	 * @return the index of the first peak with an x of at least x
+	 */
+	private static int lowerBound(long[] byX, int x)
+	{
+		long key=(long)x<<32;
+		int low=0;
+		int high=byX.length;
+		while(low<high)
+		{
+			int mid=(low+high)>>>1;
+			if(byX[mid]<key)
+			{
+				low=mid+1;
+			}
+			else
+			{
+				high=mid;
+			}
+		}
+		return low;
+	}
+
+	private void addPair(int a, int b, int square, double dim)
+	{
+		if(pairs==from.length)
+		{
+			from=Arrays.copyOf(from, pairs*2);
+			to=Arrays.copyOf(to, pairs*2);
+			squaredDistance=Arrays.copyOf(squaredDistance, pairs*2);
+			dimmer=Arrays.copyOf(dimmer, pairs*2);
+		}
+		from[pairs]=a;
+		to[pairs]=b;
+		squaredDistance[pairs]=square;
+		dimmer[pairs]=dim;
+		pairs++;
+	}
+
+	/**
+	 * Writes the counts as a CSV with columns intensity,distance,dots,links,branching,tracks,mean_track_length, one row for each grid point.
+	 * branching is the mean number of children of the dots that have any, and a track's length is how many dots are on it.
+	 * @param path where to write it
+	 * @throws IOException if it cannot be written
+	 */
+	public void writeCSV(String path) throws IOException
+	{
+		PrintWriter out=new PrintWriter(new BufferedWriter(new FileWriter(path)));
+		try
+		{
+			out.println("intensity,distance,dots,links,branching,tracks,mean_track_length");
+			for(int i=0;i<intensities.length;i++)
+			{
+				for(int d=0;d<distances.length;d++)
+				{
+					out.println(intensities[i]+","+distances[d]+","+dots[i][d]+","+links[i][d]+","+getBranching(i,d)+","+getTracks(i,d)+","+(double)dots[i][d]/getTracks(i,d));
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 *
+	 * @param i which intensity cutoff, in increasing order
+	 * @param d which distance cutoff, in increasing order
+	 * @return how many dots there would be
+	 */
+	public long getDots(int i, int d)
+	{
+		return dots[i][d];
+	}
+
+	/**
+	 *
+	 * @param i which intensity cutoff, in increasing order
+	 * @param d which distance cutoff, in increasing order
+	 * @return how many links to the next frame there would be
+	 */
+	public long getLinks(int i, int d)
+	{
+		return links[i][d];
+	}
+
+	/**
+	 *
+	 * @param i which intensity cutoff, in increasing order
+	 * @param d which distance cutoff, in increasing order
+	 * @return the mean number of children of the dots that have any, or NaN if none do
+	 */
+	public double getBranching(int i, int d)
+	{
+		return parents[i][d]>0?(double)links[i][d]/parents[i][d]:Double.NaN;
+	}
+
+	/**
+	 *
+	 * @param i which intensity cutoff, in increasing order
+	 * @param d which distance cutoff, in increasing order
+	 * @return how many tracks there would be. Every dot starts one, except the ones that carry on their parent's.
+	 */
+	public long getTracks(int i, int d)
+	{
+		return dots[i][d]-continuations[i][d];
+	}
+}
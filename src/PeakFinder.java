@@ -0,0 +1,136 @@
+import java.util.Arrays;
+
+/**
+ * Finds the peaks on a refined frame: the pixels brighter than the cutoff that are at least as bright as all 8 of their neighbors, the same test getDots always used, so flat tops are kept.
+ * The largest value around each pixel is found in two passes, the largest of 3 down each column, and then the largest of 3 of those across, so each pixel is only compared 4 times instead of 8,
+ * and only the pixels brighter than the cutoff are checked against them. A NaN anywhere around a pixel stops it from being a peak, as it did before.
+ * <p>
+ * A finder keeps its buffers, and the peaks it finds are kept as plain coordinates, so finding peaks again makes no garbage. Each thread should have its own.
+ * @author Henry Rachootin
+ *
+ */
+public final class PeakFinder
+{
+	private int[] xs=new int[256];
+	private int[] ys=new int[256];
+	private int count;
+
+	/**
+	 * The largest of 3 down the column before the one being looked at, the column itself, and the one after.
+	 */
+	private double[] before=new double[0];
+	private double[] center=new double[0];
+	private double[] after=new double[0];
+
+	/**
+	 * Finds the peaks on a frame, forgetting the ones found before.
+	 * @param refined the refined data, indexed [x][y]
+	 * @param cutoff how bright a peak has to be
+	 * @return how many peaks there are
+	 */
+	public int find(double[][] refined, double cutoff)
+	{
+		count=0;
+		int width=refined.length;
+		if(width==0)
+		{
+			return 0;
+		}
+		int height=refined[0].length;
+		if(center.length!=height)
+		{
+			before=new double[height];
+			center=new double[height];
+			after=new double[height];
+		}
+		columnMax(refined[0], center);
+		if(width>1)
+		{
+			columnMax(refined[1], after);
+		}
+		for(int x=0;x<width;x++)
+		{
+			//past the edges, the column itself stands in for the missing one, which changes nothing since the largest of a and a is a
+			double[] left=x>0?before:center;
+			double[] right=x<width-1?after:center;
+			double[] column=refined[x];
+			for(int y=0;y<height;y++)
+			{
+				double value=column[y];
+				if(value>cutoff && value>=Math.max(Math.max(left[y], center[y]), right[y]))
+				{
+					add(x,y);
+				}
+			}
+			double[] free=before;
+			before=center;
+			center=after;
+			after=free;
+			if(x+2<width)
+			{
+				columnMax(refined[x+2], after);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Finds the largest of each value in a column and the values just above and below it. Math.max is used since it gives NaN if either value is NaN.
+	 */
+	private static void columnMax(double[] column, double[] out)
+	{
+		int height=column.length;
+		if(height==1)
+		{
+			out[0]=column[0];
+			return;
+		}
+		out[0]=Math.max(column[0], column[1]);
+		for(int y=1;y<height-1;y++)
+		{
+			out[y]=Math.max(Math.max(column[y-1], column[y]), column[y+1]);
+		}
+		out[height-1]=Math.max(column[height-2], column[height-1]);
+	}
+
+	private void add(int x, int y)
+	{
+		if(count==xs.length)
+		{
+			xs=Arrays.copyOf(xs, count*2);
+			ys=Arrays.copyOf(ys, count*2);
+		}
+		xs[count]=x;
+		ys[count]=y;
+		count++;
+	}
+
+	/**
+	 *
+	 * @return how many peaks were found last time
+	 */
+	public int size()
+	{
+		return count;
+	}
+
+	/**
+	 *
+	 * @param i which peak, in the order they were found: down each column, from left to right
+	 * @return the x coordinate of the peak
+	 */
+	public int getX(int i)
+	{
+		return xs[i];
+	}
+
+	/**
+	 *
+	 * @param i which peak
+	 * @return the y coordinate of the peak
+	 */
+	public int getY(int i)
+	{
+		return ys[i];
+	}
+}
@@ -0,0 +1,335 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+
+import javax.management.ObjectName;
+
+/**
+ * Records how long each stage of tracking takes, how much it allocates, and how many dots and connections it makes, both in total and for each frame.
+ * A stage is timed by calling begin before it and end on what begin returns after it. It costs a couple of clock reads per stage per frame, so it is left on.
+ * Everything is visible over JMX as Trak:type=PipelineStats, and can be written out as a JSON run report.
+ * It can be turned off with -Dtrak.stats=false.
+ * @author Henry Rachootin
+ *
+ */
+public class PipelineStats implements PipelineStatsMBean
+{
+	/**
+	 * The stages of tracking, in the order they happen.
+	 */
+	public enum Stage
+	{
+		DECODE, CONVERT, REFINE_RANGE, REFINE_ENTROPY, REFINE_CLAMP, REFINE, COLOR, DETECT, LINK, GAP, SAVE, LOAD, PAINT, EXPORT, ANALYZE
+	}
+	private static final int STAGES=Stage.values().length;
+
+	private static final PipelineStats stats=new PipelineStats();
+	private static volatile boolean enabled=!"false".equals(System.getProperty("trak.stats"));
+
+	private static final ThreadMXBean threads=ManagementFactory.getThreadMXBean();
+	private static final boolean countAllocation=threads instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean)threads).isThreadAllocatedMemorySupported();
+
+	private final long[] counts=new long[STAGES];
+	private final long[] totalNanos=new long[STAGES];
+	private final long[] maxNanos=new long[STAGES];
+	private final long[] allocated=new long[STAGES];
+
+	/**
+	 * The per frame records, indexed [frame*STAGES+stage]
+	 */
+	private long[] frameNanos=new long[0];
+	private long[] frameAllocated=new long[0];
+	private int[] frameDots=new int[0];
+	private int[] frameEdges=new int[0];
+	private int frames=0;
+
+	static
+	{
+		try
+		{
+			ManagementFactory.getPlatformMBeanServer().registerMBean(stats, new ObjectName("Trak:type=PipelineStats"));
+		}
+		catch(Exception e)
+		{
+			//JMX is a nice to have, the stats still work without it
+		}
+	}
+
+	/**
+	 * One run of a stage, started by begin.
+	 */
+	public static final class Span
+	{
+		private final Stage stage;
+		private final int frame;
+		private final long startNanos;
+		private final long startAllocated;
+
+		private Span(Stage stage, int frame)
+		{
+			this.stage=stage;
+			this.frame=frame;
+			startAllocated=allocatedBytes();
+			startNanos=System.nanoTime();
+		}
+
+		/**
+		 * Records the time and allocation since begin.
+		 */
+		public void end()
+		{
+			if(stage==null)
+			{
+				return;
+			}
+			long nanos=System.nanoTime()-startNanos;
+			long bytes=allocatedBytes()-startAllocated;
+			stats.record(stage, frame, nanos, bytes);
+		}
+	}
+
+	/**
+	 * A span that records nothing, for when the stats are off.
+	 */
+	private static final Span NOTHING=new Span(null, -1);
+
+	/**
+	 * Starts timing a stage.
+	 * @param stage the stage
+	 * @param frame the frame it is working on, or -1 if it is not working on one frame
+	 * @return the span to call end on when the stage is done
+	 */
+	public static Span begin(Stage stage, int frame)
+	{
+		if(!enabled)
+		{
+			return NOTHING;
+		}
+		return new Span(stage, frame);
+	}
+
+	/**
+	 * Records how many dots and connections a frame has.
+	 * @param frame the frame
+	 * @param dots the number of dots on it
+	 * @param edges the number of connections from its dots to their children and siblings
+	 */
+	public static void count(int frame, int dots, int edges)
+	{
+		if(enabled && frame>=0)
+		{
+			stats.recordCounts(frame, dots, edges);
+		}
+	}
+
+	/**
+	 *
+	 * @return the stats, i.e. to write a report
+	 */
+	public static PipelineStats get()
+	{
+		return stats;
+	}
+
+	private static long allocatedBytes()
+	{
+		if(countAllocation)
+		{
+			return ((com.sun.management.ThreadMXBean)threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+	private synchronized void record(Stage stage, int frame, long nanos, long bytes)
+	{
+		if(!enabled)
+		{
+			return;
+		}
+		int s=stage.ordinal();
+		counts[s]++;
+		totalNanos[s]+=nanos;
+		maxNanos[s]=Math.max(maxNanos[s], nanos);
+		allocated[s]+=bytes;
+		if(frame>=0)
+		{
+			ensureFrames(frame+1);
+			frameNanos[frame*STAGES+s]+=nanos;
+			frameAllocated[frame*STAGES+s]+=bytes;
+		}
+	}
+
+	private synchronized void recordCounts(int frame, int dots, int edges)
+	{
+		ensureFrames(frame+1);
+		frameDots[frame]=dots;
+		frameEdges[frame]=edges;
+	}
+
+	private void ensureFrames(int needed)
+	{
+		if(needed>frames)
+		{
+			if(needed>frameDots.length)
+			{
+				int length=Math.max(needed, frameDots.length*2);
+				frameNanos=Arrays.copyOf(frameNanos, length*STAGES);
+				frameAllocated=Arrays.copyOf(frameAllocated, length*STAGES);
+				frameDots=Arrays.copyOf(frameDots, length);
+				frameEdges=Arrays.copyOf(frameEdges, length);
+			}
+			frames=needed;
+		}
+	}
+
+	public String[] getStages()
+	{
+		String[] names=new String[STAGES];
+		for(Stage stage:Stage.values())
+		{
+			names[stage.ordinal()]=stage.name();
+		}
+		return names;
+	}
+
+	public synchronized long[] getCounts()
+	{
+		return counts.clone();
+	}
+
+	public synchronized double[] getTotalMillis()
+	{
+		return toMillis(totalNanos);
+	}
+
+	public synchronized double[] getMaxMillis()
+	{
+		return toMillis(maxNanos);
+	}
+
+	public synchronized long[] getAllocatedBytes()
+	{
+		return allocated.clone();
+	}
+
+	public synchronized int getFrames()
+	{
+		return frames;
+	}
+
+	public synchronized long getDots()
+	{
+		long dots=0;
+		for(int i=0;i<frames;i++)
+		{
+			dots+=frameDots[i];
+		}
+		return dots;
+	}
+
+	public synchronized long getEdges()
+	{
+		long edges=0;
+		for(int i=0;i<frames;i++)
+		{
+			edges+=frameEdges[i];
+		}
+		return edges;
+	}
+
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	public void setEnabled(boolean on)
+	{
+		enabled=on;
+	}
+
+	public synchronized void reset()
+	{
+		Arrays.fill(counts, 0);
+		Arrays.fill(totalNanos, 0);
+		Arrays.fill(maxNanos, 0);
+		Arrays.fill(allocated, 0);
+		Arrays.fill(frameNanos, 0);
+		Arrays.fill(frameAllocated, 0);
+		Arrays.fill(frameDots, 0);
+		Arrays.fill(frameEdges, 0);
+		frames=0;
+	}
+
+	/**
+	 * Writes everything recorded as JSON: the totals for each stage, then the time, allocation and counts for each frame.
+	 * @param path where to write it
+	 * @throws IOException if it cannot be written
+	 */
+	public synchronized void writeReport(String path) throws IOException
+	{
+		PrintWriter out=new PrintWriter(new BufferedWriter(new FileWriter(path)));
+		try
+		{
+			out.println("{");
+			out.println("  \"allocationCounted\": "+countAllocation+",");
+			out.println("  \"stages\": {");
+			for(int s=0;s<STAGES;s++)
+			{
+				out.print("    \""+Stage.values()[s].name()+"\": {\"count\": "+counts[s]+", \"totalMillis\": "+totalNanos[s]/1e6+", \"maxMillis\": "+maxNanos[s]/1e6+", \"allocatedBytes\": "+allocated[s]+"}");
+				out.println(s<STAGES-1?",":"");
+			}
+			out.println("  },");
+			out.println("  \"frames\": [");
+			for(int f=0;f<frames;f++)
+			{
+				out.print("    {\"frame\": "+f+", \"dots\": "+frameDots[f]+", \"edges\": "+frameEdges[f]+", \"millis\": {");
+				writeStages(out, frameNanos, f, true);
+				out.print("}, \"allocatedBytes\": {");
+				writeStages(out, frameAllocated, f, false);
+				out.print("}}");
+				out.println(f<frames-1?",":"");
+			}
+			out.println("  ]");
+			out.println("}");
+		}
+		finally
+		{
+			out.close();
+		}
+		if(out.checkError())
+		{
+			throw new IOException("Could not write "+path);
+		}
+	}
+
+	/**
+	 * Writes the stages a frame has a record of, as "STAGE": value pairs.
+	 */
+	private static void writeStages(PrintWriter out, long[] values, int frame, boolean millis)
+	{
+		boolean first=true;
+		for(int s=0;s<STAGES;s++)
+		{
+			long value=values[frame*STAGES+s];
+			if(value!=0)
+			{
+				out.print((first?"":", ")+"\""+Stage.values()[s].name()+"\": "+(millis?String.valueOf(value/1e6):String.valueOf(value)));
+				first=false;
+			}
+		}
+	}
+
+	private static double[] toMillis(long[] nanos)
+	{
+		double[] millis=new double[nanos.length];
+		for(int i=0;i<nanos.length;i++)
+		{
+			millis[i]=nanos[i]/1e6;
+		}
+		return millis;
+	}
+}
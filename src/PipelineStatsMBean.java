@@ -0,0 +1,30 @@
+import java.io.IOException;
+
+/**
+ * What PipelineStats shows over JMX, i.e. in jconsole or VisualVM, under Trak:type=PipelineStats.
+ * Times are in milliseconds and allocation in bytes. The arrays are in the order of getStages.
+ * @author Henry Rachootin
+ *
+ */
+public interface PipelineStatsMBean
+{
+	public String[] getStages();
+	public long[] getCounts();
+	public double[] getTotalMillis();
+	public double[] getMaxMillis();
+	public long[] getAllocatedBytes();
+	public int getFrames();
+	public long getDots();
+	public long getEdges();
+	public boolean isEnabled();
+	public void setEnabled(boolean enabled);
+	/**
+	 * Writes the run report.
+	 * @param path where to write it
+	 */
+	public void writeReport(String path) throws IOException;
+	/**
+	 * Forgets everything recorded so far.
+	 */
+	public void reset();
+}
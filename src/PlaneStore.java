@@ -0,0 +1,120 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Keeps the refined data of every frame in a memory mapped scratch file instead of on the heap, for stacks too big to fit in memory.
+ * The operating system pages the planes in when they are read and out when memory is short, so only the frames being worked on, or shown, are ever resident.
+ * Each plane is stored as doubles, indexed x*height+y, so it reads back exactly as it was written.
+ * @author Henry Rachootin
+ *
+ */
+public class PlaneStore
+{
+	private final int width;
+	private final int height;
+	private final long planeBytes;
+	private final FileChannel channel;
+	/**
+	 * Each frame's part of the file, mapped the first time it is used.
+	 */
+	private MappedByteBuffer[] planes;
+
+	/**
+	 * Makes a scratch file big enough for every frame. It is deleted when Trak exits.
+	 * @param scratch where to put the scratch file
+	 * @param width the width of a frame
+	 * @param height the height of a frame
+	 * @param frames how many frames there are
+	 * @throws IOException if the scratch file cannot be made
+	 */
+	public PlaneStore(File scratch, int width, int height, int frames) throws IOException
+	{
+		this.width=width;
+		this.height=height;
+		planeBytes=8L*width*height;
+		if(planeBytes>Integer.MAX_VALUE)
+		{
+			throw new IOException("A "+width+"x"+height+" frame is too big to map");
+		}
+		planes=new MappedByteBuffer[frames];
+		scratch.deleteOnExit();
+		channel=FileChannel.open(scratch.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * Makes room for more frames, i.e. when frames are added to a live stack. The file grows as the new frames are written.
+	 * @param frames how many frames there are now
+	 */
+	public synchronized void ensureFrames(int frames)
+	{
+		if(frames>planes.length)
+		{
+			planes=Arrays.copyOf(planes, frames);
+		}
+	}
+
+	private synchronized DoubleBuffer plane(int frame)
+	{
+		if(planes[frame]==null)
+		{
+			try
+			{
+				planes[frame]=channel.map(FileChannel.MapMode.READ_WRITE, frame*planeBytes, planeBytes);
+			}
+			catch(IOException e)
+			{
+				throw new IllegalStateException("Could not map frame "+frame, e);
+			}
+		}
+		//a view of its own, so threads do not share a position
+		return planes[frame].duplicate().order(ByteOrder.nativeOrder()).asDoubleBuffer();
+	}
+
+	/**
+	 * Stores a frame's refined data.
+	 * @param frame which frame
+	 * @param refined the refined data, indexed [x][y]
+	 */
+	public void write(int frame, double[][] refined)
+	{
+		DoubleBuffer plane=plane(frame);
+		for(int x=0;x<width;x++)
+		{
+			plane.put(refined[x], 0, height);
+		}
+	}
+
+	/**
+	 * Reads a frame's refined data back onto the heap.
+	 * @param frame which frame
+	 * @return the refined data, indexed [x][y]
+	 */
+	public double[][] read(int frame)
+	{
+		DoubleBuffer plane=plane(frame);
+		double[][] refined=new double[width][height];
+		for(int x=0;x<width;x++)
+		{
+			plane.get(refined[x], 0, height);
+		}
+		return refined;
+	}
+
+	/**
+	 *
+	 * @param frame which frame
+	 * @param x the x coordinate
+	 * @param y the y coordinate
+	 * @return the refined value at x,y on that frame
+	 */
+	public double get(int frame, int x, int y)
+	{
+		return plane(frame).get(x*height+y);
+	}
+}
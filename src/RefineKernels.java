@@ -0,0 +1,190 @@
+/**
+ * The passes of DotTracker.refineAll, written as loops over whole columns of a frame instead of one pixel at a time.
+ * A column of the data, data[x], is one contiguous array, and each kernel is a simple loop over it with no exceptions, square roots or calls in it,
+ * so the JIT can unroll it and compile it to SIMD instructions, on whatever vector width the machine has.
+ * <p>
+ * Every kernel does exactly the same floating point operations, in the same order, as the pixel at a time methods in DotTracker, so the refined data is the same
+ * to the last bit either way, NaNs included. Setting -Dtrak.kernels=scalar goes back to the pixel at a time methods.
+ * @author Henry Rachootin
+ *
+ */
+public final class RefineKernels
+{
+	/**
+	 * Whether refineAll uses these kernels. Can be changed at any time, i.e. to compare the two.
+	 */
+	public static volatile boolean enabled=!"scalar".equals(System.getProperty("trak.kernels"));
+
+	private RefineKernels()
+	{
+	}
+
+	/**
+	 * Finds the lowest and highest data within range of every pixel in a column, i.e. getLocalMin and getLocalMax for a whole column at once.
+	 * The disk around each pixel is taken a column at a time: for each column of the disk, every pixel in the column being worked on is compared with the pixel dy away, for every dy in the disk.
+	 * @param data the raw data, indexed [x][y]
+	 * @param x the column to work on
+	 * @param range the LOCAL_SEARCH_RANGE
+	 * @param localMin where to put the lowest value within range of each pixel
+	 * @param localMax where to put the highest value within range of each pixel
+	 */
+	static void localRange(int[][] data, int x, int range, int[] localMin, int[] localMax)
+	{
+		int height=localMin.length;
+		for(int y=0;y<height;y++)
+		{
+			localMin[y]=10000000;
+			localMax[y]=0;
+		}
+		for(int dx=-range;dx<=range;dx++)
+		{
+			if(x+dx<0 || x+dx>=data.length)
+			{
+				continue;
+			}
+			int[] column=data[x+dx];
+			int reach=halfWidth(dx, range);
+			for(int dy=-reach;dy<=reach;dy++)
+			{
+				int start=Math.max(0, -dy);
+				int end=Math.min(height, height-dy);
+				for(int y=start;y<end;y++)
+				{
+					int value=column[y+dy];
+					localMin[y]=Math.min(localMin[y], value);
+					localMax[y]=Math.max(localMax[y], value);
+				}
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return the largest dy with sqrt(dx*dx+dy*dy)<=range, the test getLocalMin uses
+	 */
+	private static int halfWidth(int dx, int range)
+	{
+		int reach=0;
+		while(Math.sqrt(dx*dx+(reach+1)*(reach+1))<=range)
+		{
+			reach++;
+		}
+		return reach;
+	}
+
+	/**
+	 * getRefined for a whole column.
+	 * @param data the column of raw data
+	 * @param localMin the lowest value within range of each pixel
+	 * @param localMax the highest value within range of each pixel
+	 * @param min the lowest value on the frame
+	 * @param max the highest value on the frame
+	 * @param rangeCutoff the REFINE_RANGE_CUTOFF
+	 * @param intensityCutoff the REFINE_INTENSITY_CUTOFF
+	 * @param refined where to put the refined column
+	 */
+	static void refine(int[] data, int[] localMin, int[] localMax, double min, double max, double rangeCutoff, double intensityCutoff, double[] refined)
+	{
+		double frameRange=max-min;
+		double intensityRange=1-intensityCutoff;
+		for(int y=0;y<refined.length;y++)
+		{
+			double low=localMin[y];
+			double high=localMax[y];
+			double localRange=(high-min)/frameRange-(low-min)/frameRange;
+			double ref=(data[y]-low)/(high-low);
+			ref=ref<intensityCutoff?intensityCutoff:(ref>1?1:ref);
+			ref=(ref-intensityCutoff)/intensityRange;
+			refined[y]=localRange<rangeCutoff?0:ref;
+		}
+	}
+
+	/**
+	 * getEntropy for a whole column.
+	 * @param left the refined column before this one, or null if this is the first
+	 * @param center the refined column
+	 * @param right the refined column after this one, or null if this is the last
+	 * @param entropy where to put the entropy of the column
+	 */
+	static void entropy(double[] left, double[] center, double[] right, double[] entropy)
+	{
+		int height=center.length;
+		if(left==null || right==null || height<3)
+		{
+			for(int y=0;y<height;y++)
+			{
+				entropy[y]=entropyAt(left, center, right, y);
+			}
+			return;
+		}
+		entropy[0]=entropyAt(left, center, right, 0);
+		for(int y=1;y<height-1;y++)
+		{
+			//the same neighbors in the same order as getEntropy: dx from -1 to 1, then dy from -1 to 1, looking at [x-dx][y-dy]
+			double c=center[y];
+			double sum=0;
+			sum+=1-similarity(c/right[y+1]);
+			sum+=1-similarity(c/right[y]);
+			sum+=1-similarity(c/right[y-1]);
+			sum+=1-similarity(c/center[y+1]);
+			sum+=1-similarity(c/center[y]);
+			sum+=1-similarity(c/center[y-1]);
+			sum+=1-similarity(c/left[y+1]);
+			sum+=1-similarity(c/left[y]);
+			sum+=1-similarity(c/left[y-1]);
+			entropy[y]=sum/9;
+		}
+		entropy[height-1]=entropyAt(left, center, right, height-1);
+	}
+
+	/**
+	 * getEntropy at one pixel, which may be on the edge of the frame.
+	 */
+	private static double entropyAt(double[] left, double[] center, double[] right, int y)
+	{
+		double sum=0;
+		double count=0;
+		double[][] columns={right, center, left};
+		for(double[] column:columns)
+		{
+			if(column==null)
+			{
+				continue;
+			}
+			for(int dy=-1;dy<=1;dy++)
+			{
+				if(y-dy>=0 && y-dy<column.length)
+				{
+					sum+=1-similarity(center[y]/column[y-dy]);
+					count++;
+				}
+			}
+		}
+		return sum/count;
+	}
+
+	/**
+	 *
+	 * @param ratio the ratio of two refined values
+	 * @return the ratio, or its reciprocal if that is smaller. A NaN ratio stays NaN.
+	 */
+	private static double similarity(double ratio)
+	{
+		return Math.min(ratio, 1/ratio);
+	}
+
+	/**
+	 * The last pass of refineAll for a whole column: subtracts the entropy, and clamps to [0,1]. A NaN stays NaN, as it does with DotTracker.clamp.
+	 * @param refined the refined column, before the entropy is taken away
+	 * @param entropy the entropy of the column
+	 * @param out where to put the result, which may be refined itself
+	 */
+	static void subtractClamp(double[] refined, double[] entropy, double[] out)
+	{
+		for(int y=0;y<refined.length;y++)
+		{
+			double value=refined[y]-entropy[y];
+			out[y]=value<0?0:(value>1?1:value);
+		}
+	}
+}
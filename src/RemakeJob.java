@@ -0,0 +1,518 @@
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.SwingWorker;
+
+/**
+ * Remakes the dots, or just their connections, in the background, so the UI does not freeze while it happens.
+ * It works on its own new dots, made from the parameters as they were when the job was made, and only hands them to the trackers,
+ * all at once on the event dispatch thread, when every frame is done. A job can be cancelled at any point before that, and then nothing changes.
+ * <p>
+ * Finding dots runs as a pipeline of stages with small queues between them: decoding, refining, detecting and linking each have their own threads,
+ * so frame i can be linked while frame i+1 is having its dots found and frame i+2 is being refined. A stage that gets ahead of the next one
+ * waits for room in the queue, so only a few frames are ever between stages, and the whole job takes about as long as its slowest stage.
+ * @author Henry Rachootin
+ *
+ */
+public class RemakeJob extends SwingWorker<Void, Void>
+{
+	/**
+	 * How many frames can wait between two stages.
+	 */
+	private static final int QUEUE_SIZE=4;
+	/**
+	 * Refining is by far the slowest stage, so it gets more than one thread.
+	 */
+	private static final int REFINE_THREADS=Math.max(1, Runtime.getRuntime().availableProcessors()-2);
+	/**
+	 * How long a stage waits on a queue before checking whether the job was cancelled, in milliseconds.
+	 */
+	private static final long POLL_MILLIS=50;
+
+	private final DotTracker[] trackers;
+	private final boolean redetect;
+	private final double intensityCutoff;
+	private final double distanceCutoff;
+	private final int gapFrames;
+	/**
+	 * Where the raw data of frames that have no tracker yet comes from, or null if every frame has one.
+	 */
+	private final ImageFrame source;
+	/**
+	 * The first frame this job works on. The ones before it are left alone.
+	 */
+	private final int first;
+
+	private final ArrayList<ArrayList<Dot>> dots;
+	private final DotGrid[] grids;
+	private final double[] reaches;
+
+	private final CountDownLatch refined=new CountDownLatch(1);
+	private volatile Throwable failure;
+
+	/**
+	 * Makes a job, remembering the current cutoffs.
+	 * @param trackers the trackers to remake the dots of
+	 * @param redetect true to find the dots again, false to only connect the dots that are already there again
+	 */
+	public RemakeJob(DotTracker[] trackers, boolean redetect)
+	{
+		this(trackers, redetect, null, 0);
+	}
+
+	/**
+	 * Makes a job that refines every frame without a tracker, and then finds and connects the dots on every frame.
+	 * Each new tracker is put in trackers as soon as it is made, and handed to Main.frameRefined, unless the job has been cancelled by then.
+	 * @param trackers the trackers, with null for the frames that still have to be refined
+	 * @param source where to get the raw data of those frames
+	 */
+	public RemakeJob(DotTracker[] trackers, ImageFrame source)
+	{
+		this(trackers, true, source, 0);
+	}
+
+	/**
+	 * Makes a job that only works on the frames from first on, i.e. frames just added to a live stack. The frames before first keep their dots,
+	 * and the frame just before first is connected to the new frames when the job is done.
+	 * @param trackers the trackers, with null for the frames that still have to be refined
+	 * @param source where to get the raw data of those frames
+	 * @param first the first frame to work on
+	 */
+	public RemakeJob(DotTracker[] trackers, ImageFrame source, int first)
+	{
+		this(trackers, true, source, first);
+	}
+
+	private RemakeJob(DotTracker[] trackers, boolean redetect, ImageFrame source, int first)
+	{
+		this.trackers=trackers;
+		this.redetect=redetect;
+		this.source=source;
+		this.first=first;
+		intensityCutoff=DotTracker.DOT_PEAK_INTENSITY_CUTOFF;
+		distanceCutoff=DotTracker.DOT_DISTANCE_CUTOFF;
+		gapFrames=DotTracker.GAP_FRAMES;
+		dots=new ArrayList<ArrayList<Dot>>(trackers.length);
+		grids=new DotGrid[trackers.length];
+		reaches=new double[trackers.length];
+		if(!redetect)
+		{
+			//copy them now, while the dots on the trackers are still the ones that should be connected
+			for(DotTracker tracker:trackers)
+			{
+				dots.add(tracker.copyDots());
+			}
+			refined.countDown();
+		}
+		else
+		{
+			for(int i=0;i<trackers.length;i++)
+			{
+				dots.add(null);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return whether this job finds the dots again, instead of only connecting them
+	 */
+	public boolean redetects()
+	{
+		return redetect;
+	}
+
+	/**
+	 *
+	 * @return the first frame this job works on
+	 */
+	public int getFirstFrame()
+	{
+		return first;
+	}
+
+	/**
+	 *
+	 * @return the DOT_PEAK_INTENSITY_CUTOFF this job finds dots with
+	 */
+	public double getIntensityCutoff()
+	{
+		return intensityCutoff;
+	}
+	/**
+	 *
+	 * @return the DOT_DISTANCE_CUTOFF this job connects dots with
+	 */
+	public double getDistanceCutoff()
+	{
+		return distanceCutoff;
+	}
+	/**
+	 *
+	 * @return the GAP_FRAMES this job closes gaps with
+	 */
+	public int getGapFrames()
+	{
+		return gapFrames;
+	}
+
+	/**
+	 * Waits until every frame has a tracker, which happens long before the job is done, since the dots are found while frames are still being refined.
+	 * @return false if the job failed or was cancelled before every frame was refined
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public boolean awaitRefined() throws InterruptedException
+	{
+		refined.await();
+		for(DotTracker tracker:trackers)
+		{
+			if(tracker==null)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	protected Void doInBackground() throws Exception
+	{
+		try
+		{
+			if(redetect)
+			{
+				pipeline();
+			}
+			else
+			{
+				for(int i=0;i<trackers.length;i++)
+				{
+					if(isCancelled())
+					{
+						return null;
+					}
+					link(i);
+				}
+			}
+			if(gapFrames>0 && !isCancelled())
+			{
+				PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.GAP, -1);
+				new GapCloser(dots, grids, gapFrames, distanceCutoff).close(first, trackers.length);
+				span.end();
+			}
+		}
+		finally
+		{
+			refined.countDown();
+		}
+		return null;
+	}
+
+	/**
+	 * One frame, on its way through the stages.
+	 */
+	private static class Frame
+	{
+		final int index;
+		int[][] data;
+		DotTracker tracker;
+		ArrayList<Dot> found;
+
+		Frame(int index)
+		{
+			this.index=index;
+		}
+	}
+	/**
+	 * Put on a queue after the last frame, once for every thread taking from it.
+	 */
+	private static final Frame END=new Frame(-1);
+
+	private void pipeline() throws Exception
+	{
+		final BlockingQueue<Frame> decoded=new ArrayBlockingQueue<Frame>(QUEUE_SIZE);
+		final BlockingQueue<Frame> refinedFrames=new ArrayBlockingQueue<Frame>(QUEUE_SIZE);
+		final BlockingQueue<Frame> detected=new ArrayBlockingQueue<Frame>(QUEUE_SIZE);
+
+		ArrayList<Thread> stages=new ArrayList<Thread>();
+		stages.add(new Stage("decode")
+		{
+			void work() throws Exception
+			{
+				for(int i=first;i<trackers.length;i++)
+				{
+					Frame frame=new Frame(i);
+					boolean missing;
+					synchronized(trackers)
+					{
+						missing=trackers[i]==null;
+					}
+					if(missing)
+					{
+						frame.data=source.getData(i);
+					}
+					if(!put(decoded, frame))
+					{
+						return;
+					}
+				}
+			}
+			void finish()
+			{
+				for(int i=0;i<REFINE_THREADS;i++)
+				{
+					put(decoded, END);
+				}
+			}
+		});
+		final int[] refining={REFINE_THREADS};
+		for(int t=0;t<REFINE_THREADS;t++)
+		{
+			stages.add(new Stage("refine "+t)
+			{
+				void work() throws Exception
+				{
+					Frame frame;
+					while((frame=take(decoded))!=END && frame!=null)
+					{
+						if(frame.data!=null)
+						{
+							DotTracker tracker=new DotTracker(frame.data,frame.index);
+							frame.data=null;
+							//a job that replaces this one shares the trackers, and must either see this frame already refined, or refine it itself.
+							//Once this job is cancelled it publishes nothing, so the frame is only checkpointed once, and only one tracker is ever in its place
+							synchronized(trackers)
+							{
+								if(isCancelled())
+								{
+									return;
+								}
+								Main.frameRefined(frame.index, tracker);
+								trackers[frame.index]=tracker;
+							}
+						}
+						frame.tracker=trackers[frame.index];
+						if(!put(refinedFrames, frame))
+						{
+							return;
+						}
+					}
+				}
+				void finish()
+				{
+					synchronized(refining)
+					{
+						//the last refine thread to finish tells the detect stage, and anyone waiting for the trackers
+						if(--refining[0]==0)
+						{
+							refined.countDown();
+							put(refinedFrames, END);
+						}
+					}
+				}
+			});
+		}
+		stages.add(new Stage("detect")
+		{
+			void work() throws Exception
+			{
+				Frame frame;
+				while((frame=take(refinedFrames))!=END && frame!=null)
+				{
+					PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.DETECT, frame.index);
+					frame.found=frame.tracker.getDots(intensityCutoff);
+					span.end();
+					if(!put(detected, frame))
+					{
+						return;
+					}
+				}
+			}
+			void finish()
+			{
+				put(detected, END);
+			}
+		});
+		for(Thread stage:stages)
+		{
+			stage.start();
+		}
+
+		//linking happens on this thread, in order, as soon as a frame and the one after it both have their dots
+		int next=first;
+		Frame frame;
+		while(next<trackers.length && (frame=take(detected))!=END && frame!=null)
+		{
+			dots.set(frame.index, frame.found);
+			while(next<trackers.length && dots.get(next)!=null && (next==trackers.length-1 || dots.get(next+1)!=null))
+			{
+				link(next++);
+			}
+		}
+
+		for(Thread stage:stages)
+		{
+			stage.join();
+		}
+		if(failure!=null)
+		{
+			throw new Exception("A stage of the job failed", failure);
+		}
+	}
+
+	/**
+	 * Connects frame i to the next one, and indexes its dots.
+	 */
+	private void link(int i)
+	{
+		PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.LINK, i);
+		if(i<trackers.length-1)
+		{
+			reaches[i]=DotTracker.link(dots.get(i), dots.get(i+1), distanceCutoff);
+		}
+		grids[i]=trackers[i].makeGrid(dots.get(i));
+		span.end();
+		int edges=0;
+		for(Dot d:dots.get(i))
+		{
+			edges+=d.getChildren().size()+d.getSiblings().size();
+		}
+		PipelineStats.count(i, dots.get(i).size(), edges);
+	}
+
+	/**
+	 * A stage of the pipeline, running on its own thread. If any stage fails, every stage stops, and the job fails.
+	 */
+	private abstract class Stage extends Thread
+	{
+		Stage(String name)
+		{
+			super(name);
+			setDaemon(true);
+		}
+
+		public void run()
+		{
+			try
+			{
+				work();
+			}
+			catch(Throwable e)
+			{
+				failure=e;
+			}
+			finally
+			{
+				finish();
+			}
+		}
+
+		/**
+		 * Does the stage's work, until its input runs out or the job is cancelled.
+		 */
+		abstract void work() throws Exception;
+		/**
+		 * Tells the next stage that there is nothing more coming.
+		 */
+		abstract void finish();
+	}
+
+	/**
+	 * Puts a frame on a queue, waiting for room, unless the job is cancelled or fails first.
+	 * @return whether it was put on the queue
+	 */
+	private boolean put(BlockingQueue<Frame> queue, Frame frame)
+	{
+		try
+		{
+			while(!queue.offer(frame, POLL_MILLIS, TimeUnit.MILLISECONDS))
+			{
+				if(isCancelled() || failure!=null)
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		catch(InterruptedException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Takes a frame from a queue, waiting for one, unless the job is cancelled or fails first.
+	 * @return the frame, or null if the job was cancelled or failed
+	 */
+	private Frame take(BlockingQueue<Frame> queue)
+	{
+		try
+		{
+			Frame frame;
+			while((frame=queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS))==null)
+			{
+				if(isCancelled() || failure!=null)
+				{
+					return null;
+				}
+			}
+			return frame;
+		}
+		catch(InterruptedException e)
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * Gives the trackers their new dots, unless the job was cancelled or failed.
+	 */
+	protected void done()
+	{
+		if(isCancelled())
+		{
+			return;
+		}
+		try
+		{
+			get();
+		}
+		catch(Exception e)
+		{
+			e.printStackTrace();
+			return;
+		}
+		Main.trackersReady(trackers);
+		for(int i=first;i<trackers.length;i++)
+		{
+			trackers[i].setDots(dots.get(i), grids[i], reaches[i]);
+			trackers[i].highlighted=null; //they point to the old dots
+		}
+		if(first>0)
+		{
+			//the frame before the new ones is the only old frame that gets new children
+			trackers[first-1].linkNext(dots.get(first), distanceCutoff);
+			if(gapFrames>0)
+			{
+				//and the last few old frames may have ends that the new frames close
+				ArrayList<ArrayList<Dot>> all=new ArrayList<ArrayList<Dot>>(trackers.length);
+				DotGrid[] allGrids=new DotGrid[trackers.length];
+				for(int i=0;i<trackers.length;i++)
+				{
+					all.add(trackers[i].dots);
+					allGrids[i]=trackers[i].getGrid();
+				}
+				new GapCloser(all, allGrids, gapFrames, distanceCutoff).close(Math.max(0, first-gapFrames), first);
+			}
+		}
+		else
+		{
+			Main.im.highlightEnd=-1;
+		}
+		Main.im.hovered=null;
+		Main.im.invalidateOverlay();
+		Main.dotsMade(this);
+	}
+}
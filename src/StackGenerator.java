@@ -0,0 +1,223 @@
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+
+/**
+ * Makes up stacks of gaussian spots moving by brownian motion over a noisy background, along with where every spot really was on every frame.
+ * They can be as big as needed, and the same seed always makes the same stack, so they are good for load testing and for checking the tracking.
+ * Run it with arguments like out.tif width=512 height=512 frames=200 spots=300 step=1 drift=0.2,0 noise=15 seed=1.
+ * The trajectories are written next to the stack, to out.tif.truth.csv.
+ * @author Henry Rachootin
+ *
+ */
+public class StackGenerator
+{
+	public int width=256;
+	public int height=256;
+	/**
+	 * The number of spots.
+	 */
+	public int spots=50;
+	/**
+	 * The standard deviation of each spot's step per frame, in pixels, in each direction.
+	 */
+	public double step=1;
+	/**
+	 * How far every spot moves each frame, on top of its random step.
+	 */
+	public double driftX=0;
+	public double driftY=0;
+	/**
+	 * The standard deviation of the background noise.
+	 */
+	public double noise=15;
+	public double background=100;
+	/**
+	 * How bright the center of a spot is, above the background.
+	 */
+	public double brightness=1000;
+	/**
+	 * The standard deviation of the gaussian a spot is drawn as, in pixels.
+	 */
+	public double spotSize=1.2;
+	public long seed=1;
+
+	private Random random;
+	private double[] xs;
+	private double[] ys;
+	private int frame=-1;
+
+	/**
+	 * Makes the next frame. The first call places the spots, and every call after that moves them first.
+	 * @return the frame, indexed [x][y]
+	 */
+	public int[][] next()
+	{
+		if(random==null)
+		{
+			random=new Random(seed);
+			xs=new double[spots];
+			ys=new double[spots];
+			for(int s=0;s<spots;s++)
+			{
+				xs[s]=random.nextDouble()*width;
+				ys[s]=random.nextDouble()*height;
+			}
+		}
+		else
+		{
+			for(int s=0;s<spots;s++)
+			{
+				xs[s]=reflect(xs[s]+driftX+random.nextGaussian()*step, width);
+				ys[s]=reflect(ys[s]+driftY+random.nextGaussian()*step, height);
+			}
+		}
+		frame++;
+
+		double[][] intensity=new double[width][height];
+		for(int x=0;x<width;x++)
+		{
+			for(int y=0;y<height;y++)
+			{
+				intensity[x][y]=background+random.nextGaussian()*noise;
+			}
+		}
+		int radius=(int)Math.ceil(spotSize*4);
+		double twoSigmaSquared=2*spotSize*spotSize;
+		for(int s=0;s<spots;s++)
+		{
+			int cx=(int)Math.round(xs[s]);
+			int cy=(int)Math.round(ys[s]);
+			for(int x=Math.max(0, cx-radius);x<=Math.min(width-1, cx+radius);x++)
+			{
+				for(int y=Math.max(0, cy-radius);y<=Math.min(height-1, cy+radius);y++)
+				{
+					double d2=(x-xs[s])*(x-xs[s])+(y-ys[s])*(y-ys[s]);
+					intensity[x][y]+=brightness*Math.exp(-d2/twoSigmaSquared);
+				}
+			}
+		}
+		int[][] data=new int[width][height];
+		for(int x=0;x<width;x++)
+		{
+			for(int y=0;y<height;y++)
+			{
+				data[x][y]=(int)Math.max(0, Math.min(65535, Math.round(intensity[x][y])));
+			}
+		}
+		return data;
+	}
+
+	/**
+	 *
+	 * @return the frame the last call to next made, starting from 0
+	 */
+	public int getFrame()
+	{
+		return frame;
+	}
+	/**
+	 *
+	 * @param spot which spot
+	 * @return where the spot really was on the last frame made
+	 */
+	public double getX(int spot)
+	{
+		return xs[spot];
+	}
+	/**
+	 *
+	 * @param spot which spot
+	 * @return where the spot really was on the last frame made
+	 */
+	public double getY(int spot)
+	{
+		return ys[spot];
+	}
+
+	/**
+	 * Keeps spots that wander off an edge on the frame by bouncing them back. A frame one pixel across has nowhere to bounce to, so the spot stays at 0.
+	 */
+	private static double reflect(double val, int size)
+	{
+		double max=size-1;
+		if(max<=0)
+		{
+			return 0;
+		}
+		while(val<0 || val>max)
+		{
+			if(val<0) val=-val;
+			if(val>max) val=2*max-val;
+		}
+		return val;
+	}
+
+	/**
+	 * Writes a whole stack and its trajectories, one frame at a time.
+	 * @param tif the file to write the stack to
+	 * @param frames how many frames to write
+	 * @throws IOException if either file cannot be written
+	 */
+	public void write(File tif, int frames) throws IOException
+	{
+		TiffWriter out=new TiffWriter(tif, width, height, false);
+		PrintWriter truth=new PrintWriter(new BufferedWriter(new FileWriter(tif.getPath()+".truth.csv")));
+		try
+		{
+			truth.println("frame,spot,x,y");
+			for(int f=0;f<frames;f++)
+			{
+				out.write(next());
+				for(int s=0;s<spots;s++)
+				{
+					truth.println(frame+","+s+","+xs[s]+","+ys[s]);
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+			truth.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length==0)
+		{
+			System.out.println("usage: StackGenerator out.tif [width=256] [height=256] [frames=100] [spots=50] [step=1] [drift=0,0] [noise=15] [brightness=1000] [size=1.2] [seed=1]");
+			return;
+		}
+		StackGenerator gen=new StackGenerator();
+		int frames=100;
+		for(int i=1;i<args.length;i++)
+		{
+			String[] pair=args[i].split("=",2);
+			String key=pair[0];
+			String value=pair.length>1?pair[1]:"";
+			if(key.equals("width")) gen.width=Integer.parseInt(value);
+			else if(key.equals("height")) gen.height=Integer.parseInt(value);
+			else if(key.equals("frames")) frames=Integer.parseInt(value);
+			else if(key.equals("spots")) gen.spots=Integer.parseInt(value);
+			else if(key.equals("step")) gen.step=Double.parseDouble(value);
+			else if(key.equals("drift"))
+			{
+				String[] drift=value.split(",");
+				gen.driftX=Double.parseDouble(drift[0]);
+				gen.driftY=drift.length>1?Double.parseDouble(drift[1]):0;
+			}
+			else if(key.equals("noise")) gen.noise=Double.parseDouble(value);
+			else if(key.equals("brightness")) gen.brightness=Double.parseDouble(value);
+			else if(key.equals("size")) gen.spotSize=Double.parseDouble(value);
+			else if(key.equals("seed")) gen.seed=Long.parseLong(value);
+			else throw new IllegalArgumentException("Unknown argument "+args[i]);
+		}
+		long before=System.currentTimeMillis();
+		gen.write(new File(args[0]), frames);
+		System.out.println("Wrote "+frames+" frames of "+gen.width+"x"+gen.height+" with "+gen.spots+" spots in "+(System.currentTimeMillis()-before)+" ms");
+	}
+}
@@ -0,0 +1,181 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a stack of 16 bit grayscale frames to a multi-page TIFF, one directory per frame, the same kind of file the microscope makes.
+ * Frames are written as they are given, so a stack does not have to fit in memory, and a stack it wrote can be added to later.
+ * @author Henry Rachootin
+ *
+ */
+public class TiffWriter implements Closeable
+{
+	private static final short IMAGE_WIDTH=256;
+	private static final short IMAGE_LENGTH=257;
+	private static final short BITS_PER_SAMPLE=258;
+	private static final short COMPRESSION=259;
+	private static final short PHOTOMETRIC_INTERPRETATION=262;
+	private static final short STRIP_OFFSETS=273;
+	private static final short SAMPLES_PER_PIXEL=277;
+	private static final short ROWS_PER_STRIP=278;
+	private static final short STRIP_BYTE_COUNTS=279;
+
+	private static final short SHORT=3;
+	private static final short LONG=4;
+
+	private static final int ENTRIES=9;
+	private static final int IFD_SIZE=2+ENTRIES*12+4;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int width;
+	private final int height;
+	private final ByteBuffer pixels;
+	private final ByteBuffer ifd=ByteBuffer.allocate(IFD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+	/**
+	 * Where the offset of the next directory goes, so it can be filled in when there is one.
+	 */
+	private long nextPointer;
+
+	/**
+	 * Opens a TIFF to write to.
+	 * @param f the file
+	 * @param width the width of every frame
+	 * @param height the height of every frame
+	 * @param append true to add frames to the end of a stack this class wrote before, false to start a new one
+	 * @throws IOException if the file cannot be written, or cannot be appended to
+	 */
+	public TiffWriter(File f, int width, int height, boolean append) throws IOException
+	{
+		this.width=width;
+		this.height=height;
+		pixels=ByteBuffer.allocate(width*height*2).order(ByteOrder.LITTLE_ENDIAN);
+		file=new RandomAccessFile(f, "rw");
+		channel=file.getChannel();
+		if(append && channel.size()>0)
+		{
+			nextPointer=findLastPointer();
+		}
+		else
+		{
+			channel.truncate(0);
+			ByteBuffer header=ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			header.put((byte)'I').put((byte)'I').putShort((short)42).putInt(0);
+			header.flip();
+			channel.write(header, 0);
+			nextPointer=4;
+		}
+	}
+
+	/**
+	 * Follows the chain of directories to the last one.
+	 * @return the position of the last directory's next directory offset
+	 */
+	private long findLastPointer() throws IOException
+	{
+		ByteBuffer buffer=ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		channel.read(buffer, 0);
+		if(buffer.get(0)!='I' || buffer.get(1)!='I' || buffer.getShort(2)!=42)
+		{
+			throw new IOException("Not a little endian TIFF");
+		}
+		long pointer=4;
+		while(true)
+		{
+			buffer.clear();
+			channel.read(buffer, pointer);
+			long offset=buffer.getInt(0)&0xFFFFFFFFL;
+			if(offset==0)
+			{
+				return pointer;
+			}
+			buffer.clear();
+			buffer.limit(2);
+			channel.read(buffer, offset);
+			int entries=buffer.getShort(0)&0xFFFF;
+			pointer=offset+2+entries*12;
+		}
+	}
+
+	/**
+	 * Adds a frame to the end of the stack. It is on disk, and readable, when this returns.
+	 * @param data the frame, indexed [x][y]. Values are clamped to [0,65535].
+	 * @throws IOException if it cannot be written
+	 */
+	public void write(int[][] data) throws IOException
+	{
+		pixels.clear();
+		for(int y=0;y<height;y++)
+		{
+			for(int x=0;x<width;x++)
+			{
+				pixels.putShort((short)Math.max(0, Math.min(65535, data[x][y])));
+			}
+		}
+		pixels.flip();
+
+		long pixelOffset=channel.size();
+		pixelOffset+=pixelOffset&1; //TIFF offsets are word aligned
+		long ifdOffset=pixelOffset+pixels.remaining();
+		ifdOffset+=ifdOffset&1;
+		if(ifdOffset+IFD_SIZE>0xFFFFFFFFL)
+		{
+			throw new IOException("Stack is too big for a TIFF");
+		}
+		while(pixels.hasRemaining())
+		{
+			channel.write(pixels, pixelOffset+pixels.position());
+		}
+
+		ifd.clear();
+		ifd.putShort((short)ENTRIES);
+		entry(IMAGE_WIDTH, LONG, width);
+		entry(IMAGE_LENGTH, LONG, height);
+		entry(BITS_PER_SAMPLE, SHORT, 16);
+		entry(COMPRESSION, SHORT, 1);
+		entry(PHOTOMETRIC_INTERPRETATION, SHORT, 1);
+		entry(STRIP_OFFSETS, LONG, (int)pixelOffset);
+		entry(SAMPLES_PER_PIXEL, SHORT, 1);
+		entry(ROWS_PER_STRIP, LONG, height);
+		entry(STRIP_BYTE_COUNTS, LONG, width*height*2);
+		ifd.putInt(0);
+		ifd.flip();
+		while(ifd.hasRemaining())
+		{
+			channel.write(ifd, ifdOffset+ifd.position());
+		}
+
+		//the directory has to be there before anything points at it, so a reader never sees a half written frame
+		channel.force(false);
+		ByteBuffer pointer=ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		pointer.putInt(0, (int)ifdOffset);
+		channel.write(pointer, nextPointer);
+		channel.force(false);
+		nextPointer=ifdOffset+2+ENTRIES*12;
+	}
+
+	private void entry(short tag, short type, int value)
+	{
+		ifd.putShort(tag);
+		ifd.putShort(type);
+		ifd.putInt(1);
+		if(type==SHORT)
+		{
+			ifd.putShort((short)value);
+			ifd.putShort((short)0);
+		}
+		else
+		{
+			ifd.putInt(value);
+		}
+	}
+
+	public void close() throws IOException
+	{
+		file.close();
+	}
+}
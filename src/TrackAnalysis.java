@@ -0,0 +1,604 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Diffusion analysis of the tracks: the mean squared displacement (MSD) of each track and of all of them together, a histogram of step sizes,
+ * and the velocity autocorrelation (VACF). Everything is in pixels and frames.
+ * <p>
+ * Tracks follow Dot.getTrackParent, which is the same as in TrackExport, except that a track also carries on across a gap,
+ * and the frames in the gap are missing from the track.
+ * <p>
+ * The tracks are shared out between threads, a few at a time, and each thread adds its tracks into sums of its own, which are added together at the end.
+ * The MSD of a track at every lag at once is a sum of correlations of the positions, which for a long track are found with FFTs,
+ * in O(n log n) instead of O(n^2). Missing frames are masked out of the correlations, so tracks with gaps get exactly the pairs they have.
+ * The ensemble curves are averaged over every pair of positions at each lag, so long tracks count for more.
+ * @author Henry Rachootin
+ *
+ */
+public class TrackAnalysis
+{
+	/**
+	 * Tracks at least this long have their correlations found with FFTs, shorter ones directly.
+	 */
+	private static final int FFT_LENGTH=64;
+	/**
+	 * How many tracks a thread takes at a time.
+	 */
+	private static final int CHUNK=256;
+	/**
+	 * How many bins of the step size histogram there are to a pixel.
+	 */
+	public static final int BINS_PER_PIXEL=10;
+	/**
+	 * How many lags the diffusion coefficient of a track is fit to.
+	 */
+	private static final int FIT_LAGS=4;
+
+	/**
+	 * The DOT_DISTANCE_CUTOFF the dots were connected with, which no step between neighboring frames is longer than.
+	 */
+	private final double distanceCutoff;
+
+	/**
+	 * Each track's first frame, and its positions on every frame from there on, NaN on the frames it is missing from.
+	 */
+	private int[] firstFrame;
+	private double[][] xs;
+	private double[][] ys;
+	private int tracks;
+
+	private double[] msdSum;
+	private long[] msdPairs;
+	private double[] vacfSum;
+	private long[] vacfPairs;
+	private long[] steps;
+	/**
+	 * Each track's MSD at every lag it has, NaN at lags with no pairs, and how many pairs each lag had.
+	 */
+	private double[][] trackMsd;
+	private int[][] trackPairs;
+	private double[] trackD;
+	private int[] trackDots;
+
+	/**
+	 * Finds the tracks through the dots the trackers have now, and copies their positions, so the dots can be remade or linked to new frames while they are analyzed.
+	 * Should be made on the event dispatch thread, where the dots are changed.
+	 * @param trackers the trackers to analyze
+	 * @param distanceCutoff the DOT_DISTANCE_CUTOFF the dots were connected with
+	 * @param gapFrames the GAP_FRAMES the gaps were closed with
+	 */
+	public TrackAnalysis(DotTracker[] trackers, double distanceCutoff, int gapFrames)
+	{
+		this.distanceCutoff=distanceCutoff;
+		ArrayList<ArrayList<Dot>> frames=new ArrayList<ArrayList<Dot>>(trackers.length);
+		for(DotTracker tracker:trackers)
+		{
+			frames.add(tracker.dots);
+		}
+		findTracks(frames, gapFrames);
+	}
+
+	/**
+	 * Works out everything about the tracks.
+	 * @param threads how many threads to use
+	 * @return how many tracks there are
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	public int analyze(int threads) throws InterruptedException
+	{
+		int longest=1;
+		for(int t=0;t<tracks;t++)
+		{
+			longest=Math.max(longest, xs[t].length);
+		}
+		msdSum=new double[longest];
+		msdPairs=new long[longest];
+		vacfSum=new double[longest];
+		vacfPairs=new long[longest];
+		steps=new long[(int)Math.ceil(distanceCutoff*BINS_PER_PIXEL)+1];
+		trackMsd=new double[tracks][];
+		trackPairs=new int[tracks][];
+		trackD=new double[tracks];
+
+		final AtomicInteger next=new AtomicInteger();
+		Worker[] workers=new Worker[Math.max(1, threads)];
+		for(int w=0;w<workers.length;w++)
+		{
+			workers[w]=new Worker(next, longest);
+			workers[w].start();
+		}
+		for(Worker worker:workers)
+		{
+			worker.join();
+			if(worker.failure!=null)
+			{
+				throw new IllegalStateException("Analysis failed", worker.failure);
+			}
+			for(int lag=0;lag<longest;lag++)
+			{
+				msdSum[lag]+=worker.msdSum[lag];
+				msdPairs[lag]+=worker.msdPairs[lag];
+				vacfSum[lag]+=worker.vacfSum[lag];
+				vacfPairs[lag]+=worker.vacfPairs[lag];
+			}
+			for(int b=0;b<steps.length;b++)
+			{
+				steps[b]+=worker.steps[b];
+			}
+		}
+		return tracks;
+	}
+
+	/**
+	 * Writes the results of analyze as four CSVs: path.msd.csv with columns lag,msd,pairs,vacf,vacf_pairs for all the tracks together, where vacf is normalized so it is 1 at a lag of 0,
+	 * path.steps.csv with columns from,to,count, where the last bin holds every step from its start up, so its to is inf, and path.tracks.csv with columns track,first_frame,frames,dots,msd1,D for each track,
+	 * where msd1 is the MSD at a lag of one frame and D is the diffusion coefficient fit to the first few lags, in pixels squared per frame,
+	 * and path.track_msd.csv with columns track,lag,msd,pairs, with each track's MSD at every lag it has pairs at.
+	 * @param path the start of the paths to write to
+	 * @throws IOException if they cannot be written
+	 */
+	public void writeCSV(String path) throws IOException
+	{
+		PrintWriter out=new PrintWriter(new BufferedWriter(new FileWriter(path+".msd.csv")));
+		try
+		{
+			out.println("lag,msd,pairs,vacf,vacf_pairs");
+			double vacf0=vacfPairs.length>0 && vacfPairs[0]>0?vacfSum[0]/vacfPairs[0]:Double.NaN;
+			for(int lag=1;lag<msdSum.length;lag++)
+			{
+				if(msdPairs[lag]==0)
+				{
+					continue;
+				}
+				double vacf=vacfPairs[lag]>0?vacfSum[lag]/vacfPairs[lag]/vacf0:Double.NaN;
+				out.println(lag+","+msdSum[lag]/msdPairs[lag]+","+msdPairs[lag]+","+vacf+","+vacfPairs[lag]);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		out=new PrintWriter(new BufferedWriter(new FileWriter(path+".steps.csv")));
+		try
+		{
+			out.println("from,to,count");
+			for(int b=0;b<steps.length;b++)
+			{
+				String to=b==steps.length-1?"inf":(b+1)/(double)BINS_PER_PIXEL+"";
+				out.println(b/(double)BINS_PER_PIXEL+","+to+","+steps[b]);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		out=new PrintWriter(new BufferedWriter(new FileWriter(path+".tracks.csv")));
+		try
+		{
+			out.println("track,first_frame,frames,dots,msd1,D");
+			for(int t=0;t<tracks;t++)
+			{
+				double msd1=trackMsd[t].length>1?trackMsd[t][1]:Double.NaN;
+				out.println(t+","+firstFrame[t]+","+xs[t].length+","+trackDots[t]+","+msd1+","+trackD[t]);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		out=new PrintWriter(new BufferedWriter(new FileWriter(path+".track_msd.csv")));
+		try
+		{
+			out.println("track,lag,msd,pairs");
+			for(int t=0;t<tracks;t++)
+			{
+				for(int lag=1;lag<trackMsd[t].length;lag++)
+				{
+					if(trackPairs[t][lag]>0)
+					{
+						out.println(t+","+lag+","+trackMsd[t][lag]+","+trackPairs[t][lag]);
+					}
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 *
+	 * @return the ensemble MSD at each lag, NaN where there are no pairs. Index 0 is 0.
+	 */
+	public double[] getMSD()
+	{
+		double[] msd=new double[msdSum.length];
+		for(int lag=0;lag<msd.length;lag++)
+		{
+			msd[lag]=msdPairs[lag]>0?msdSum[lag]/msdPairs[lag]:Double.NaN;
+		}
+		return msd;
+	}
+
+	/**
+	 *
+	 * @param track a track
+	 * @return the track's MSD at each lag, NaN where it has no pairs. Index 0 is 0.
+	 */
+	public double[] getTrackMSD(int track)
+	{
+		return trackMsd[track];
+	}
+
+	/**
+	 *
+	 * @return each track's diffusion coefficient, NaN for tracks too short to have one
+	 */
+	public double[] getDiffusionCoefficients()
+	{
+		return trackD;
+	}
+
+	/**
+	 * Follows the lineages through the frames, a frame at a time, giving each dot a track.
+	 */
+	private void findTracks(ArrayList<ArrayList<Dot>> frames, int gapFrames)
+	{
+		firstFrame=new int[16];
+		xs=new double[16][];
+		ys=new double[16][];
+		trackDots=new int[16];
+		tracks=0;
+		//the tracks of the dots on the last few frames, far enough back for any gap
+		ArrayDeque<IdentityHashMap<Dot,Integer>> recent=new ArrayDeque<IdentityHashMap<Dot,Integer>>();
+		int window=gapFrames+1;
+		for(int f=0;f<frames.size();f++)
+		{
+			ArrayList<Dot> frame=frames.get(f);
+			IdentityHashMap<Dot,Integer> trackOf=new IdentityHashMap<Dot,Integer>(frame.size()*2);
+			for(Dot d:frame)
+			{
+				Integer track=null;
+				Dot from=d.getTrackParent();
+				if(from!=null)
+				{
+					for(IdentityHashMap<Dot,Integer> earlier:recent)
+					{
+						track=earlier.get(from);
+						if(track!=null)
+						{
+							break;
+						}
+					}
+				}
+				if(track==null)
+				{
+					track=newTrack(f);
+				}
+				add(track, f, d);
+				trackOf.put(d, track);
+			}
+			recent.addFirst(trackOf);
+			if(recent.size()>window)
+			{
+				recent.removeLast();
+			}
+		}
+		firstFrame=Arrays.copyOf(firstFrame, tracks);
+		xs=Arrays.copyOf(xs, tracks);
+		ys=Arrays.copyOf(ys, tracks);
+		trackDots=Arrays.copyOf(trackDots, tracks);
+	}
+
+	private int newTrack(int frame)
+	{
+		if(tracks==firstFrame.length)
+		{
+			firstFrame=Arrays.copyOf(firstFrame, tracks*2);
+			xs=Arrays.copyOf(xs, tracks*2);
+			ys=Arrays.copyOf(ys, tracks*2);
+			trackDots=Arrays.copyOf(trackDots, tracks*2);
+		}
+		firstFrame[tracks]=frame;
+		xs[tracks]=new double[0];
+		ys[tracks]=new double[0];
+		return tracks++;
+	}
+
+	/**
+	 * Puts a dot on a track, growing the track to reach its frame. The frames skipped over are missing.
+	 */
+	private void add(int track, int frame, Dot d)
+	{
+		int at=frame-firstFrame[track];
+		int length=xs[track].length;
+		if(at>=length)
+		{
+			xs[track]=Arrays.copyOf(xs[track], at+1);
+			ys[track]=Arrays.copyOf(ys[track], at+1);
+			for(int i=length;i<at;i++)
+			{
+				xs[track][i]=Double.NaN;
+				ys[track][i]=Double.NaN;
+			}
+		}
+		xs[track][at]=d.getX();
+		ys[track][at]=d.getY();
+		trackDots[track]++;
+	}
+
+	/**
+	 * Analyzes tracks a few at a time until there are none left, keeping its own sums and scratch space.
+	 */
+	private class Worker extends Thread
+	{
+		private final AtomicInteger next;
+		final double[] msdSum;
+		final long[] msdPairs;
+		final double[] vacfSum;
+		final long[] vacfPairs;
+		final long[] steps=new long[TrackAnalysis.this.steps.length];
+		volatile Throwable failure;
+
+		/**
+		 * The MSD sums and pair counts of the track being worked on, and room for its FFTs.
+		 */
+		private final double[] sum;
+		private final double[] pairs;
+		private double[][] scratch=new double[8][0];
+
+		Worker(AtomicInteger next, int longest)
+		{
+			super("analysis");
+			setDaemon(true);
+			this.next=next;
+			msdSum=new double[longest];
+			msdPairs=new long[longest];
+			vacfSum=new double[longest];
+			vacfPairs=new long[longest];
+			sum=new double[longest];
+			pairs=new double[longest];
+		}
+
+		public void run()
+		{
+			try
+			{
+				int start;
+				while((start=next.getAndAdd(CHUNK))<tracks)
+				{
+					for(int t=start;t<Math.min(tracks, start+CHUNK);t++)
+					{
+						analyze(t);
+					}
+				}
+			}
+			catch(Throwable e)
+			{
+				failure=e;
+			}
+		}
+
+		private void analyze(int t)
+		{
+			double[] x=xs[t];
+			double[] y=ys[t];
+			int n=x.length;
+
+			for(int i=0;i+1<n;i++)
+			{
+				double step=Math.hypot(x[i+1]-x[i], y[i+1]-y[i]);
+				if(!Double.isNaN(step))
+				{
+					steps[Math.min(steps.length-1, (int)(step*BINS_PER_PIXEL))]++;
+				}
+			}
+
+			correlate(x, y, n, false);
+			double fitUp=0;
+			double fitDown=0;
+			double[] curve=new double[Math.max(1, n)];
+			int[] curvePairs=new int[curve.length];
+			for(int lag=1;lag<n;lag++)
+			{
+				long count=Math.round(pairs[lag]);
+				curve[lag]=count>0?sum[lag]/count:Double.NaN;
+				curvePairs[lag]=(int)count;
+				if(count>0)
+				{
+					msdSum[lag]+=sum[lag];
+					msdPairs[lag]+=count;
+					if(lag<=FIT_LAGS)
+					{
+						fitUp+=lag*sum[lag]/count;
+						fitDown+=lag*lag;
+					}
+				}
+			}
+			trackMsd[t]=curve;
+			trackPairs[t]=curvePairs;
+			//in 2 dimensions MSD=4*D*lag, fit through the origin by least squares
+			trackD[t]=fitDown>0?fitUp/(4*fitDown):Double.NaN;
+
+			if(n>1)
+			{
+				double[] vx=scratch(6, n-1);
+				double[] vy=scratch(7, n-1);
+				for(int i=0;i<n-1;i++)
+				{
+					vx[i]=x[i+1]-x[i];
+					vy[i]=y[i+1]-y[i];
+				}
+				correlate(vx, vy, n-1, true);
+				for(int lag=0;lag<n-1;lag++)
+				{
+					long count=Math.round(pairs[lag]);
+					if(count>0)
+					{
+						vacfSum[lag]+=sum[lag];
+						vacfPairs[lag]+=count;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Fills sum and pairs, for every lag from 0 to n-1, with the sums over every pair of points lag apart that are both there, and how many pairs there are.
+		 * The sums are of the squared distance between them, or with dot, of their dot product. A point is missing if it is NaN.
+		 */
+		private void correlate(double[] x, double[] y, int n, boolean dot)
+		{
+			if(n<FFT_LENGTH)
+			{
+				for(int lag=0;lag<n;lag++)
+				{
+					double s=0;
+					int c=0;
+					for(int i=0;i+lag<n;i++)
+					{
+						double value=dot?x[i]*x[i+lag]+y[i]*y[i+lag]:square(x[i+lag]-x[i])+square(y[i+lag]-y[i]);
+						if(!Double.isNaN(value))
+						{
+							s+=value;
+							c++;
+						}
+					}
+					sum[lag]=s;
+					pairs[lag]=c;
+				}
+				return;
+			}
+			int size=Integer.highestOneBit(2*n-1)<<1;
+			//the mask m, the masked positions, and for the MSD the masked squared length a, all padded with zeros so the correlations do not wrap around
+			double[] mRe=scratch(0, size);
+			double[] mIm=scratch(1, size);
+			double[] pRe=scratch(2, size);
+			double[] pIm=scratch(3, size);
+			double[] aRe=scratch(4, size);
+			double[] aIm=scratch(5, size);
+			for(int i=0;i<size;i++)
+			{
+				boolean there=i<n && !Double.isNaN(x[i]) && !Double.isNaN(y[i]);
+				mRe[i]=there?1:0;
+				pRe[i]=there?x[i]:0;
+				pIm[i]=there?y[i]:0;
+				aRe[i]=there?x[i]*x[i]+y[i]*y[i]:0;
+				mIm[i]=0;
+				aIm[i]=0;
+			}
+			fft(mRe, mIm, size, false);
+			fft(pRe, pIm, size, false);
+			fft(aRe, aIm, size, false);
+			//the x and y parts of the sum over t of p[t]*p[t+lag] come from |P|^2, averaged with its mirror image, which leaves out the cross terms between x and y.
+			//For the MSD it is corr(m,a)+corr(a,m)-2*that, and the pairs are corr(m,m). Both are real, so they share one inverse FFT, as its real and imaginary parts.
+			for(int k=0;k<=size/2;k++)
+			{
+				int mirror=(size-k)&(size-1);
+				double power=(pRe[k]*pRe[k]+pIm[k]*pIm[k]+pRe[mirror]*pRe[mirror]+pIm[mirror]*pIm[mirror])/2;
+				spectrum(k, power, dot, mRe, mIm, aRe, aIm, pRe, pIm);
+				if(mirror!=k)
+				{
+					spectrum(mirror, power, dot, mRe, mIm, aRe, aIm, pRe, pIm);
+				}
+			}
+			fft(pRe, pIm, size, true);
+			for(int lag=0;lag<n;lag++)
+			{
+				sum[lag]=pRe[lag];
+				pairs[lag]=pIm[lag];
+			}
+		}
+
+		/**
+		 * Puts the spectrum of the sums and pairs at k into p.
+		 */
+		private void spectrum(int k, double power, boolean dot, double[] mRe, double[] mIm, double[] aRe, double[] aIm, double[] pRe, double[] pIm)
+		{
+			//conj(M)A+conj(A)M is 2*Re(conj(M)A)
+			pRe[k]=dot?power:2*(mRe[k]*aRe[k]+mIm[k]*aIm[k])-2*power;
+			pIm[k]=mRe[k]*mRe[k]+mIm[k]*mIm[k];
+		}
+
+		private double[] scratch(int which, int size)
+		{
+			if(scratch[which].length<size)
+			{
+				scratch[which]=new double[size];
+			}
+			return scratch[which];
+		}
+	}
+
+	private static double square(double value)
+	{
+		return value*value;
+	}
+
+	/**
+	 * An in place radix 2 FFT of the start of two arrays.
+	 * @param re the real parts
+	 * @param im the imaginary parts
+	 * @param n how many to transform, a power of 2
+	 * @param inverse true for the inverse transform, which is also divided by n
+	 */
+	static void fft(double[] re, double[] im, int n, boolean inverse)
+	{
+		for(int i=1, j=0;i<n;i++)
+		{
+			int bit=n>>1;
+			for(;(j&bit)!=0;bit>>=1)
+			{
+				j^=bit;
+			}
+			j^=bit;
+			if(i<j)
+			{
+				double t=re[i]; re[i]=re[j]; re[j]=t;
+				t=im[i]; im[i]=im[j]; im[j]=t;
+			}
+		}
+		for(int length=2;length<=n;length<<=1)
+		{
+			double angle=(inverse?2:-2)*Math.PI/length;
+			double stepRe=Math.cos(angle);
+			double stepIm=Math.sin(angle);
+			for(int i=0;i<n;i+=length)
+			{
+				double wRe=1;
+				double wIm=0;
+				for(int j=0;j<length/2;j++)
+				{
+					int a=i+j;
+					int b=a+length/2;
+					double uRe=re[a];
+					double uIm=im[a];
+					double vRe=re[b]*wRe-im[b]*wIm;
+					double vIm=re[b]*wIm+im[b]*wRe;
+					re[a]=uRe+vRe;
+					im[a]=uIm+vIm;
+					re[b]=uRe-vRe;
+					im[b]=uIm-vIm;
+					double nextRe=wRe*stepRe-wIm*stepIm;
+					wIm=wRe*stepIm+wIm*stepRe;
+					wRe=nextRe;
+				}
+			}
+		}
+		if(inverse)
+		{
+			for(int i=0;i<n;i++)
+			{
+				re[i]/=n;
+				im[i]/=n;
+			}
+		}
+	}
+}
@@ -0,0 +1,384 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * Writes the dots and their connections out of Trak, for analysis in other tools. Frames are written one at a time through a FileChannel.
+ * <p>
+ * Every dot is given a track, following Dot.getTrackParent as DotIndex and TrackAnalysis do, so a track carries on across a gap, and every dot that has no track parent starts a new one.
+ * Dots are numbered by their position in their frame's list of dots, so a connection is written as the frame and number of each end.
+ * <p>
+ * There are two formats. writeCSV writes a dots CSV with columns frame,dot,x,y,intensity,track and a links CSV with columns frame,dot,to_frame,to_dot,kind,
+ * where kind is child or sibling. writeColumns writes one little endian binary file: "TRAKCOL1", the number of frames as an int, and then for every frame
+ * the frame number, number of dots and number of links as ints, followed by the columns x, y (ints), intensity (floats), track (ints),
+ * from, to (ints) and kind (bytes, 0 for child, 1 for sibling), each column whole before the next one starts.
+ * @author Henry Rachootin
+ *
+ */
+public class TrackExport
+{
+	private static final byte CHILD=0;
+	private static final byte SIBLING=1;
+	private static final int BUFFER_SIZE=1<<20;
+
+	private final Frame[] frames;
+
+	/**
+	 * A copy of one frame's dots: where each is, its track, and the numbers of its children on the next frame and its siblings on this one.
+	 * The links of dot i are children[childStart[i]] to children[childStart[i+1]-1], and the same for siblings.
+	 */
+	private static class Frame
+	{
+		DotTracker tracker;
+		int[] xs;
+		int[] ys;
+		int[] tracks;
+		int[] childStart;
+		int[] children;
+		int[] siblingStart;
+		int[] siblings;
+
+		int size()
+		{
+			return xs.length;
+		}
+	}
+
+	/**
+	 * Copies the dots the trackers have now, so they can be written on another thread while a RemakeJob gives the trackers new dots,
+	 * or, in live mode, connects the old dots to new frames. Should be made on the event dispatch thread, where the dots are changed.
+	 * The copy is a few ints for each dot and link.
+	 * @param trackers the trackers to export
+	 */
+	public TrackExport(DotTracker[] trackers)
+	{
+		frames=new Frame[trackers.length];
+		IdentityHashMap<Dot,Integer> indices=null;
+		IdentityHashMap<Dot,Integer> nextIndices=trackers.length>0?number(trackers[0].dots):null;
+		IdentityHashMap<Dot,Integer> trackOf=new IdentityHashMap<Dot,Integer>();
+		int nextTrack=0;
+		for(int f=0;f<trackers.length;f++)
+		{
+			ArrayList<Dot> dots=trackers[f].dots;
+			indices=nextIndices;
+			nextIndices=f+1<trackers.length?number(trackers[f+1].dots):new IdentityHashMap<Dot,Integer>();
+			Frame frame=new Frame();
+			int n=dots.size();
+			frame.tracker=trackers[f];
+			frame.xs=new int[n];
+			frame.ys=new int[n];
+			frame.tracks=new int[n];
+			frame.childStart=new int[n+1];
+			frame.siblingStart=new int[n+1];
+			int childCount=0;
+			int siblingCount=0;
+			for(Dot d:dots)
+			{
+				childCount+=d.getChildren().size();
+				siblingCount+=d.getSiblings().size();
+			}
+			frame.children=new int[childCount];
+			frame.siblings=new int[siblingCount];
+			childCount=0;
+			siblingCount=0;
+			for(int i=0;i<n;i++)
+			{
+				Dot d=dots.get(i);
+				frame.xs[i]=d.getX();
+				frame.ys[i]=d.getY();
+				Dot from=d.getTrackParent();
+				Integer track=from!=null?trackOf.get(from):null;
+				frame.tracks[i]=track!=null?track:nextTrack++;
+				trackOf.put(d, frame.tracks[i]);
+				frame.childStart[i]=childCount;
+				for(Dot child:d.getChildren())
+				{
+					Integer j=nextIndices.get(child);
+					if(j!=null)
+					{
+						frame.children[childCount++]=j;
+					}
+				}
+				frame.siblingStart[i]=siblingCount;
+				for(Dot sibling:d.getSiblings())
+				{
+					Integer j=indices.get(sibling);
+					if(j!=null)
+					{
+						frame.siblings[siblingCount++]=j;
+					}
+				}
+			}
+			frame.childStart[n]=childCount;
+			frame.siblingStart[n]=siblingCount;
+			frames[f]=frame;
+		}
+	}
+
+	/**
+	 * Writes the dots and links as two CSVs.
+	 * @param dotsPath where to write the dots
+	 * @param linksPath where to write the links
+	 * @return how many dots were written
+	 * @throws IOException if they cannot be written
+	 */
+	public long writeCSV(String dotsPath, String linksPath) throws IOException
+	{
+		ChannelWriter dots=new ChannelWriter(dotsPath);
+		ChannelWriter links=new ChannelWriter(linksPath);
+		long written=0;
+		try
+		{
+			dots.text("frame,dot,x,y,intensity,track\n");
+			links.text("frame,dot,to_frame,to_dot,kind\n");
+			for(int f=0;f<frames.length;f++)
+			{
+				PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.EXPORT, f);
+				Frame frame=frames[f];
+				for(int i=0;i<frame.size();i++)
+				{
+					dots.number(f).text(',').number(i).text(',').number(frame.xs[i]).text(',').number(frame.ys[i]).text(',');
+					dots.fixed(frame.tracker.getIntensity(frame.xs[i], frame.ys[i])).text(',').number(frame.tracks[i]).text('\n');
+					for(int c=frame.childStart[i];c<frame.childStart[i+1];c++)
+					{
+						links.number(f).text(',').number(i).text(',').number(f+1).text(',').number(frame.children[c]).text(",child\n");
+					}
+					for(int s=frame.siblingStart[i];s<frame.siblingStart[i+1];s++)
+					{
+						links.number(f).text(',').number(i).text(',').number(f).text(',').number(frame.siblings[s]).text(",sibling\n");
+					}
+				}
+				written+=frame.size();
+				span.end();
+			}
+		}
+		finally
+		{
+			dots.close();
+			links.close();
+		}
+		return written;
+	}
+
+	/**
+	 * Writes the dots and links to one columnar binary file, as described above.
+	 * @param path where to write it
+	 * @return how many dots were written
+	 * @throws IOException if it cannot be written
+	 */
+	public long writeColumns(String path) throws IOException
+	{
+		ChannelWriter out=new ChannelWriter(path);
+		long written=0;
+		try
+		{
+			out.text("TRAKCOL1").putInt(frames.length);
+			for(int f=0;f<frames.length;f++)
+			{
+				PipelineStats.Span span=PipelineStats.begin(PipelineStats.Stage.EXPORT, f);
+				Frame frame=frames[f];
+				int n=frame.size();
+				out.putInt(f).putInt(n).putInt(frame.children.length+frame.siblings.length);
+				for(int i=0;i<n;i++)
+				{
+					out.putInt(frame.xs[i]);
+				}
+				for(int i=0;i<n;i++)
+				{
+					out.putInt(frame.ys[i]);
+				}
+				for(int i=0;i<n;i++)
+				{
+					out.putFloat((float)frame.tracker.getIntensity(frame.xs[i], frame.ys[i]));
+				}
+				for(int i=0;i<n;i++)
+				{
+					out.putInt(frame.tracks[i]);
+				}
+				//each dot's children and then its siblings, as the CSV has them
+				for(int i=0;i<n;i++)
+				{
+					int links=frame.childStart[i+1]-frame.childStart[i]+frame.siblingStart[i+1]-frame.siblingStart[i];
+					for(int l=0;l<links;l++)
+					{
+						out.putInt(i);
+					}
+				}
+				for(int i=0;i<n;i++)
+				{
+					for(int c=frame.childStart[i];c<frame.childStart[i+1];c++)
+					{
+						out.putInt(frame.children[c]);
+					}
+					for(int s=frame.siblingStart[i];s<frame.siblingStart[i+1];s++)
+					{
+						out.putInt(frame.siblings[s]);
+					}
+				}
+				for(int i=0;i<n;i++)
+				{
+					for(int c=frame.childStart[i];c<frame.childStart[i+1];c++)
+					{
+						out.putByte(CHILD);
+					}
+					for(int s=frame.siblingStart[i];s<frame.siblingStart[i+1];s++)
+					{
+						out.putByte(SIBLING);
+					}
+				}
+				written+=n;
+				span.end();
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		return written;
+	}
+
+	private static IdentityHashMap<Dot,Integer> number(ArrayList<Dot> frame)
+	{
+		IdentityHashMap<Dot,Integer> index=new IdentityHashMap<Dot,Integer>(frame.size()*2);
+		for(int i=0;i<frame.size();i++)
+		{
+			index.put(frame.get(i), i);
+		}
+		return index;
+	}
+
+	/**
+	 * Writes to a file through a big direct buffer, which is only handed to the channel when it fills up. Numbers are written into the buffer
+	 * digit by digit, so no Strings are made for them.
+	 */
+	private static class ChannelWriter
+	{
+		private final FileChannel channel;
+		private final ByteBuffer buffer=ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		private final byte[] digits=new byte[20];
+
+		ChannelWriter(String path) throws IOException
+		{
+			channel=FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		}
+
+		private void ensure(int bytes) throws IOException
+		{
+			if(buffer.remaining()<bytes)
+			{
+				flush();
+			}
+		}
+
+		ChannelWriter text(String s) throws IOException
+		{
+			ensure(s.length());
+			for(int i=0;i<s.length();i++)
+			{
+				buffer.put((byte)s.charAt(i));
+			}
+			return this;
+		}
+
+		ChannelWriter text(char c) throws IOException
+		{
+			ensure(1);
+			buffer.put((byte)c);
+			return this;
+		}
+
+		ChannelWriter number(long value) throws IOException
+		{
+			ensure(digits.length+1);
+			if(value<0)
+			{
+				buffer.put((byte)'-');
+				value=-value;
+			}
+			int n=0;
+			do
+			{
+				digits[n++]=(byte)('0'+value%10);
+				value/=10;
+			}
+			while(value>0);
+			while(n>0)
+			{
+				buffer.put(digits[--n]);
+			}
+			return this;
+		}
+
+		/**
+		 * Writes a value with four decimal places, which is as precise as the refined data needs.
+		 */
+		ChannelWriter fixed(double value) throws IOException
+		{
+			if(Double.isNaN(value))
+			{
+				return text("NaN");
+			}
+			long scaled=Math.round(value*10000);
+			if(scaled<0)
+			{
+				text('-');
+				scaled=-scaled;
+			}
+			number(scaled/10000).text('.');
+			long fraction=scaled%10000;
+			for(long place=1000;place>0;place/=10)
+			{
+				text((char)('0'+fraction/place%10));
+			}
+			return this;
+		}
+
+		ChannelWriter putInt(int value) throws IOException
+		{
+			ensure(4);
+			buffer.putInt(value);
+			return this;
+		}
+
+		ChannelWriter putFloat(float value) throws IOException
+		{
+			ensure(4);
+			buffer.putFloat(value);
+			return this;
+		}
+
+		ChannelWriter putByte(byte value) throws IOException
+		{
+			ensure(1);
+			buffer.put(value);
+			return this;
+		}
+
+		void flush() throws IOException
+		{
+			buffer.flip();
+			while(buffer.hasRemaining())
+			{
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+
+		void close() throws IOException
+		{
+			try
+			{
+				flush();
+			}
+			finally
+			{
+				channel.close();
+			}
+		}
+	}
+}